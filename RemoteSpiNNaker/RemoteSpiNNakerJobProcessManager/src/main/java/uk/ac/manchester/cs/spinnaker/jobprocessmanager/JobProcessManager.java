@@ -13,7 +13,6 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
@@ -22,6 +21,10 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.swing.Timer;
 
@@ -39,6 +42,7 @@ import uk.ac.manchester.cs.spinnaker.jobprocess.JobProcessFactory;
 import uk.ac.manchester.cs.spinnaker.jobprocess.LogWriter;
 import uk.ac.manchester.cs.spinnaker.jobprocess.PyNNJobProcess;
 import uk.ac.manchester.cs.spinnaker.machine.SpinnakerMachine;
+import uk.ac.manchester.cs.spinnaker.utils.ArchiveStream;
 
 /**
  * Manages a running job process. This is run as a separate process from the
@@ -123,14 +127,27 @@ public class JobProcessManager {
 		this.authToken = authToken;
 	}
 
-	public void runJob() {
+	/**
+	 * Gets a job, and runs it.
+	 *
+	 * @return The status to exit with: 0 if the job ran, 1 if it failed and
+	 *         the failure was reported, or 2 if the failure could not be
+	 *         reported
+	 */
+	public int runJob() {
+		Future<Machine> machineRequest = null;
 		try {
 			jobManager = createJobManager(serverUrl, authToken);
 
-			// Read the job
-			job = jobManager.getNextJob(executerId);
+			// Read the job; an empty answer means ask again
+			do {
+				job = jobManager.getNextJob(executerId);
+			} while (job == null);
 			projectId = new File(job.getCollabId()).getName();
 
+			// Ask for the machine now, so it gets ready while the job downloads
+			machineRequest = requestMachine();
+
 			// Create a temporary location for the job
 			File workingDirectory = createTempDir("job", ".tmp", null);
 
@@ -142,8 +159,8 @@ public class JobProcessManager {
 					.createProcess(parameters);
 			logWriter = getLogWriter();
 
-			// Read the machine
-			Machine machine = getMachine();
+			// Wait for the machine
+			Machine machine = waitForMachine(machineRequest);
 
 			// Execute the process
 			log("Running job " + job.getId() + " on " + machine + " using "
@@ -153,16 +170,26 @@ public class JobProcessManager {
 
 			// Get the exit status
 			processOutcome(workingDirectory, process, logWriter.getLog());
+			return 0;
 		} catch (Exception error) {
-			reportFailure(error);
-			exit(1);
+			/*
+			 * Stop waiting for the machine; a request already being made is
+			 * not aborted, but it has a connection of its own and does not
+			 * keep the process alive. Once told of the error, the job manager
+			 * releases any machine given to the job, even one given after this
+			 * point
+			 */
+			if (machineRequest != null)
+				machineRequest.cancel(true);
+			return reportFailure(error) ? 1 : 2;
 		}
 	}
 
-	private void reportFailure(Throwable error) {
+	/** @return False if the failure could not be reported */
+	private boolean reportFailure(Throwable error) {
 		if (jobManager == null || job == null) {
 			log(error);
-			return;
+			return true;
 		}
 
 		try {
@@ -175,11 +202,12 @@ public class JobProcessManager {
 			jobManager.setJobError(projectId, job.getId(), error.getMessage(),
 					log, "", new ArrayList<String>(), new RemoteStackTrace(
 							error));
+			return true;
 		} catch (Throwable t) {
 			// Exception while reporting exception...
 			log(t);
 			log(error);
-			exit(2);
+			return false;
 		}
 	}
 
@@ -222,9 +250,9 @@ public class JobProcessManager {
 				throw new IllegalArgumentException("unknown option: " + args[i]);
 			}
 
-		new JobProcessManager(serverUrl, deleteOnExit, isLocal, executerId,
-				liveUploadOutput, requestMachine, authToken).runJob();
-		exit(0);
+		exit(new JobProcessManager(serverUrl, deleteOnExit, isLocal,
+				executerId, liveUploadOutput, requestMachine, authToken)
+				.runJob());
 	}
 
 	private static final int DEFAULT = -1;
@@ -237,6 +265,37 @@ public class JobProcessManager {
 		return new Machine(serverUrl, job.getId());
 	}
 
+	/**
+	 * Gets the machine in the background, so that the wait for it (which may
+	 * include powering on the boards) overlaps with getting the job ready.
+	 */
+	private Future<Machine> requestMachine() {
+		FutureTask<Machine> request = new FutureTask<>(new Callable<Machine>() {
+			@Override
+			public Machine call() {
+				return getMachine();
+			}
+		});
+		Thread thread = new Thread(request, "Machine for job " + job.getId());
+		thread.setDaemon(true);
+		thread.start();
+		return request;
+	}
+
+	private Machine waitForMachine(Future<Machine> request) throws Exception {
+		long start = System.currentTimeMillis();
+		try {
+			Machine machine = request.get();
+			log("Waited " + (System.currentTimeMillis() - start)
+					+ "ms for the machine after the job was ready");
+			return machine;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception)
+				throw (Exception) e.getCause();
+			throw e;
+		}
+	}
+
 	/**
 	 * Sort out the parameters to a job. Includes downloading any necessary
 	 * files.
@@ -284,14 +343,15 @@ public class JobProcessManager {
 
 		List<File> outputs = process.getOutputs();
 		List<String> outputsAsStrings = new ArrayList<>();
-		for (File output : outputs)
-			if (isLocal)
+		if (isLocal)
+			for (File output : outputs)
 				outputsAsStrings.add(output.getAbsolutePath());
-			else
-				try (InputStream input = new FileInputStream(output)) {
-					jobManager.addOutput(projectId, job.getId(),
-							output.getName(), input);
-				}
+		else if (!outputs.isEmpty())
+			// Send all the outputs in one request, archived as they are sent
+			try (InputStream archive = new ArchiveStream(
+					workingDirectory, outputs)) {
+				jobManager.addOutputs(projectId, job.getId(), archive);
+			}
 
 		switch (status) {
 		case Error:
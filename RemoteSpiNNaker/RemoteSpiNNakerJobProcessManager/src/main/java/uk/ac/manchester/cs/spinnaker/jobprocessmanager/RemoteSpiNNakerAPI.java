@@ -21,6 +21,12 @@ public abstract class RemoteSpiNNakerAPI {
 	}
 
 	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * The most requests that may be made at once: the machine is asked for
+	 * while the job is being got ready, and the failure of either must still
+	 * be reported, as must the log
+	 */
+	private static final int CONNECTION_POOL_SIZE = 4;
 
 	/**
 	 * How to talk to the main website.
@@ -34,7 +40,9 @@ public abstract class RemoteSpiNNakerAPI {
 	 */
 	public static JobManagerInterface createJobManager(String url,
 			String authToken) {
-		ResteasyClientBuilder builder = new ResteasyClientBuilder();
+		ResteasyClientBuilder builder = new ResteasyClientBuilder()
+				.connectionPoolSize(CONNECTION_POOL_SIZE).maxPooledPerRoute(
+						CONNECTION_POOL_SIZE);
 		// TODO Add https trust store, etc.
 		ResteasyClient client = builder.build();
 		client.register(new JacksonJsonProvider());
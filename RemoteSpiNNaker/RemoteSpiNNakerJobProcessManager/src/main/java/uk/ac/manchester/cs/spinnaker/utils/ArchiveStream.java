@@ -0,0 +1,129 @@
+package uk.ac.manchester.cs.spinnaker.utils;
+
+import static java.nio.file.FileVisitResult.CONTINUE;
+import static java.nio.file.Files.walkFileTree;
+import static org.apache.commons.compress.archivers.tar.TarArchiveOutputStream.BIGNUMBER_POSIX;
+import static org.apache.commons.compress.archivers.tar.TarArchiveOutputStream.LONGFILE_POSIX;
+import static org.apache.commons.io.FileUtils.copyFile;
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+/**
+ * A gzipped tar archive of some of the files in a directory tree, made as it
+ * is read. The tree is walked, and the files added to the archive, by a
+ * separate thread, so the archive is never held in full in memory or on
+ * disk. Each file is stored under its path relative to the top of the tree.
+ * If adding a file fails, reading the stream fails with the same error once
+ * the files before it have been read.
+ */
+public class ArchiveStream extends PipedInputStream {
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final Path baseDirectory;
+	private final Set<Path> files = new HashSet<>();
+	private volatile IOException failure;
+
+	/**
+	 * Starts archiving some files.
+	 *
+	 * @param baseDirectory
+	 *            The top of the tree that holds the files
+	 * @param files
+	 *            The files to archive, all in the tree
+	 * @throws IOException
+	 *             If the stream cannot be set up
+	 */
+	public ArchiveStream(File baseDirectory, Collection<File> files)
+			throws IOException {
+		super(BUFFER_SIZE);
+		this.baseDirectory = getPath(baseDirectory);
+		for (File file : files)
+			this.files.add(getPath(file));
+		final PipedOutputStream output = new PipedOutputStream(this);
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					writeArchive(output);
+				} catch (IOException e) {
+					failure = e;
+				} finally {
+					// Only now can the reader see the end of the stream
+					closeQuietly(output);
+				}
+			}
+		}, "Output archiver");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private static Path getPath(File file) {
+		return file.getAbsoluteFile().toPath().normalize();
+	}
+
+	private void writeArchive(PipedOutputStream output) throws IOException {
+		GZIPOutputStream gzip = new GZIPOutputStream(output, BUFFER_SIZE);
+		final TarArchiveOutputStream tar = new TarArchiveOutputStream(gzip);
+		tar.setLongFileMode(LONGFILE_POSIX);
+		tar.setBigNumberMode(BIGNUMBER_POSIX);
+		final Set<Path> missing = new HashSet<>(files);
+		walkFileTree(baseDirectory, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path path,
+					BasicFileAttributes attributes) throws IOException {
+				if (missing.remove(path)) {
+					File file = path.toFile();
+					String name = baseDirectory.relativize(path).toString()
+							.replace(File.separatorChar, '/');
+					tar.putArchiveEntry(new TarArchiveEntry(file, name));
+					copyFile(file, tar);
+					tar.closeArchiveEntry();
+				}
+				return CONTINUE;
+			}
+		});
+		if (!missing.isEmpty())
+			throw new IOException("outputs not found in " + baseDirectory
+					+ ": " + missing);
+		tar.finish();
+		gzip.finish();
+		gzip.flush();
+	}
+
+	private void checkFailure() throws IOException {
+		if (failure != null)
+			throw new IOException("failed to archive outputs", failure);
+	}
+
+	@Override
+	public synchronized int read() throws IOException {
+		int b = super.read();
+		if (b < 0)
+			checkFailure();
+		return b;
+	}
+
+	@Override
+	public synchronized int read(byte[] buffer, int offset, int length)
+			throws IOException {
+		int n = super.read(buffer, offset, length);
+		if (n < 0)
+			checkFailure();
+		return n;
+	}
+}
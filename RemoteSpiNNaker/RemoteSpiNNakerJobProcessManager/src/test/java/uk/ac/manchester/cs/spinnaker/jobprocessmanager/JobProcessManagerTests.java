@@ -0,0 +1,96 @@
+package uk.ac.manchester.cs.spinnaker.jobprocessmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class JobProcessManagerTests {
+	private static void respond(HttpExchange exchange, int status,
+			String body) throws IOException {
+		try (InputStream in = exchange.getRequestBody()) {
+			while (in.read() >= 0) {
+				// Read the whole request before answering it
+			}
+		}
+		if (body == null)
+			exchange.sendResponseHeaders(status, -1);
+		else {
+			byte[] bytes = body.getBytes("UTF-8");
+			exchange.getResponseHeaders().add("Content-Type",
+					"application/json");
+			exchange.sendResponseHeaders(status, bytes.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(bytes);
+			}
+		}
+		exchange.close();
+	}
+
+	@Test(timeout = 60000)
+	public void failureIsReportedWhileWaitingForMachine() throws Exception {
+		final CountDownLatch machineRequested = new CountDownLatch(1);
+		final CountDownLatch machineReleased = new CountDownLatch(1);
+		final List<String> errors = new CopyOnWriteArrayList<>();
+		ExecutorService executor = Executors.newCachedThreadPool();
+		HttpServer server = HttpServer.create(new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0), 0);
+		final String url = "http://127.0.0.1:"
+				+ server.getAddress().getPort() + "/";
+		server.setExecutor(executor);
+		server.createContext("/", new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				String path = exchange.getRequestURI().getPath();
+				try {
+					if (path.equals("/job/next")) {
+						respond(exchange, 200, "{\"id\":7,\"collabId\":\"1\","
+								+ "\"code\":\"import pyNN\",\"inputData\":"
+								+ "[{\"url\":\"" + url + "input\"}]}");
+					} else if (path.equals("/job/7/machine")) {
+						// Only answered once the test is over
+						machineRequested.countDown();
+						machineReleased.await();
+						respond(exchange, 204, null);
+					} else if (path.equals("/input")) {
+						// Fail staging while the machine is being waited for
+						machineRequested.await();
+						respond(exchange, 404, null);
+					} else if (path.equals("/job/1/7/error")) {
+						errors.add(exchange.getRequestURI().getQuery());
+						respond(exchange, 204, null);
+					} else {
+						respond(exchange, 404, null);
+					}
+				} catch (InterruptedException e) {
+					respond(exchange, 500, null);
+				}
+			}
+		});
+		server.start();
+		try {
+			JobProcessManager manager = new JobProcessManager(url, true,
+					false, "test", false, true, null);
+			assertEquals(1, manager.runJob());
+			assertEquals(1, errors.size());
+		} finally {
+			machineReleased.countDown();
+			server.stop(0);
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,47 @@
+package uk.ac.manchester.cs.spinnaker.utils;
+
+import static java.nio.file.Files.createTempDirectory;
+import static java.util.Arrays.asList;
+import static org.apache.commons.io.FileUtils.deleteQuietly;
+import static org.apache.commons.io.FileUtils.writeStringToFile;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class ArchiveStreamTests {
+	@Test
+	public void filesKeepTheirPlaceInTheTree() throws Exception {
+		File base = createTempDirectory("archive").toFile();
+		try {
+			File a = new File(base, "a/out.txt");
+			File b = new File(base, "b/out.txt");
+			File ignored = new File(base, "in.txt");
+			writeStringToFile(a, "first", "UTF-8");
+			writeStringToFile(b, "second", "UTF-8");
+			writeStringToFile(ignored, "input", "UTF-8");
+
+			Map<String, String> entries = new HashMap<>();
+			try (TarArchiveInputStream tar = new TarArchiveInputStream(
+					new GZIPInputStream(new ArchiveStream(base, asList(a, b))))) {
+				TarArchiveEntry entry;
+				while ((entry = tar.getNextTarEntry()) != null)
+					entries.put(entry.getName(),
+							IOUtils.toString(tar, "UTF-8"));
+			}
+
+			assertEquals(2, entries.size());
+			assertEquals("first", entries.get("a/out.txt"));
+			assertEquals("second", entries.get("b/out.txt"));
+		} finally {
+			deleteQuietly(base);
+		}
+	}
+}
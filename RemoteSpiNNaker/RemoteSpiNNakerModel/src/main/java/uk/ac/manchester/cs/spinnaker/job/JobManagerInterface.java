@@ -23,6 +23,7 @@ import uk.ac.manchester.cs.spinnaker.machine.SpinnakerMachine;
 @Path("/job")
 public interface JobManagerInterface {
 	String APPLICATION_ZIP = "application/zip";
+	String APPLICATION_TAR = "application/x-tar";
 	String JOB_PROCESS_MANAGER_ZIP = "RemoteSpiNNakerJobProcessManager.zip";
 
 	@GET
@@ -73,6 +74,23 @@ public interface JobManagerInterface {
 			@PathParam("id") int id,
 			@QueryParam("outputFilename") String output, InputStream input);
 
+	/**
+	 * Adds many outputs at once.
+	 *
+	 * @param projectId
+	 *            The id of the project
+	 * @param id
+	 *            The id of the job
+	 * @param archive
+	 *            A tar archive of the outputs, which may be gzipped; the name
+	 *            of each entry is the name of the output
+	 */
+	@POST
+	@Path("{projectId}/{id}/addoutputs")
+	@Consumes(APPLICATION_TAR)
+	void addOutputs(@PathParam("projectId") String projectId,
+			@PathParam("id") int id, InputStream archive);
+
 	@POST
 	@Path("{projectId}/{id}/finished")
 	@Consumes(TEXT_PLAIN)
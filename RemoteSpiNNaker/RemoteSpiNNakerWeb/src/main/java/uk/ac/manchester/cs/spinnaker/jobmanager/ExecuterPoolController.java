@@ -0,0 +1,144 @@
+package uk.ac.manchester.cs.spinnaker.jobmanager;
+
+import static java.lang.Math.ceil;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+/**
+ * Decides how many executers to launch. The pool is grown to cover the jobs
+ * that are waiting and not already covered by an idle or launching executer,
+ * up to a limit set by the configuration and by how many jobs the machines
+ * can run at once.
+ * <p>
+ * Launches are rate limited: up to a burst of them may be made at once,
+ * after which they are allowed at a steady rate. Each failure (an executer
+ * that could not be launched, or that exited without taking a job) doubles
+ * the time before the next launch is allowed, up to a limit; an executer
+ * taking a job clears this.
+ */
+class ExecuterPoolController {
+	private final int maxExecuters;
+	private final double launchesPerSecond;
+	private final int launchBurst;
+	private final long initialBackoff;
+	private final long maxBackoff;
+
+	/** The launches that may be made now, topped up at the launch rate */
+	private double launchTokens;
+	private long tokensUpdated;
+	private int nFailures;
+	private long backoffUntil;
+
+	/**
+	 * @param maxExecuters
+	 *            The most executers to run at once
+	 * @param launchesPerSecond
+	 *            The steady rate at which executers may be launched, or 0
+	 *            for no limit
+	 * @param launchBurst
+	 *            The most executers that may be launched at once
+	 * @param initialBackoff
+	 *            How long (in ms) to wait after the first failure
+	 * @param maxBackoff
+	 *            The longest time (in ms) to wait after a failure
+	 */
+	ExecuterPoolController(int maxExecuters, double launchesPerSecond,
+			int launchBurst, long initialBackoff, long maxBackoff) {
+		this.maxExecuters = maxExecuters;
+		this.launchesPerSecond = launchesPerSecond;
+		this.launchBurst = max(1, launchBurst);
+		this.initialBackoff = initialBackoff;
+		this.maxBackoff = max(initialBackoff, maxBackoff);
+		launchTokens = this.launchBurst;
+		tokensUpdated = now();
+	}
+
+	/** The time now, in ms; can be replaced for testing */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	private void refill(long now) {
+		if (launchesPerSecond <= 0)
+			launchTokens = launchBurst;
+		else
+			launchTokens = min(launchBurst, launchTokens
+					+ (now - tokensUpdated) * launchesPerSecond / 1000.0);
+		tokensUpdated = now;
+	}
+
+	/**
+	 * Works out how many executers to launch now. Each one launched must
+	 * then be reported with {@link #launched()}.
+	 *
+	 * @param queuedJobs
+	 *            The number of jobs waiting for an executer
+	 * @param idle
+	 *            The number of executers running that have not taken a job
+	 * @param running
+	 *            The number of executers running, including idle ones
+	 * @param launching
+	 *            The number of executers being launched
+	 * @param machineCapacity
+	 *            The most jobs the machines can run at once, or a negative
+	 *            number if this is not known
+	 * @return The number of executers to launch
+	 */
+	synchronized int getLaunchCount(int queuedJobs, int idle, int running,
+			int launching, int machineCapacity) {
+		int limit = maxExecuters;
+		if (machineCapacity >= 0)
+			limit = min(limit, machineCapacity);
+		int count = min(queuedJobs - idle - launching, limit - running
+				- launching);
+		if (count <= 0)
+			return 0;
+
+		long now = now();
+		if (now < backoffUntil)
+			return 0;
+		refill(now);
+		return min(count, (int) launchTokens);
+	}
+
+	/** Notes that an executer has been launched */
+	synchronized void launched() {
+		refill(now());
+		launchTokens = max(0, launchTokens - 1);
+	}
+
+	/** Notes that an executer failed to launch or to take a job */
+	synchronized void failed() {
+		nFailures++;
+		long backoff = initialBackoff << min(nFailures - 1, 30);
+		if (backoff <= 0 || backoff > maxBackoff)
+			backoff = maxBackoff;
+		backoffUntil = now() + backoff;
+	}
+
+	/** Notes that an executer has taken a job */
+	synchronized void succeeded() {
+		nFailures = 0;
+		backoffUntil = 0;
+	}
+
+	/**
+	 * @return How long (in ms) until another executer might be allowed to
+	 *         launch, or 0 if one may launch now
+	 */
+	synchronized long getLaunchDelay() {
+		long now = now();
+		if (now < backoffUntil)
+			return backoffUntil - now;
+		refill(now);
+		if (launchTokens >= 1)
+			return 0;
+		return (long) ceil((1 - launchTokens) * 1000.0
+				/ launchesPerSecond);
+	}
+
+	/** @return The number of failures since an executer last took a job */
+	synchronized int getFailureCount() {
+		return nFailures;
+	}
+}
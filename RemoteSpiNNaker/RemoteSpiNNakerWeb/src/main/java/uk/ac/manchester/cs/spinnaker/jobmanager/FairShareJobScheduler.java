@@ -0,0 +1,275 @@
+package uk.ac.manchester.cs.spinnaker.jobmanager;
+
+import static java.lang.Math.pow;
+
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.springframework.beans.factory.annotation.Value;
+
+import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
+
+/**
+ * Shares the executers between collabs according to how much each has used
+ * recently. The next job to run is the oldest waiting job of the collab with
+ * the lowest score, where the score of a collab is its recent usage (which
+ * decays over time, and includes a charge for each job it has running),
+ * divided by its weight, less an allowance for how long its oldest job has
+ * waited. Jobs of each collab run in the order they arrived.
+ * <p>
+ * Collabs waiting to run are kept in a sorted set, so adding and taking a
+ * job take time logarithmic in the number of collabs. As the allowance for
+ * waiting grows at the same rate for every collab, it does not change the
+ * order of the set; the decay of usage does (slightly), so the set is
+ * re-sorted from time to time.
+ */
+public class FairShareJobScheduler implements JobScheduler {
+	/** How long (in ms) it takes for the usage of a collab to halve */
+	@Value("${scheduler.usageHalfLifeMs:3600000}")
+	private long usageHalfLife;
+	/** The usage (core-seconds) forgiven for each second a job waits */
+	@Value("${scheduler.agingRate:100}")
+	private double agingRate;
+	/** The usage (core-seconds) charged for each job that is running */
+	@Value("${scheduler.runningJobCharge:43200}")
+	private double runningJobCharge;
+	/** The share of each collab that does not have a weight of 1 */
+	private final Map<String, Double> weights = new HashMap<>();
+
+	private final long epoch = System.currentTimeMillis();
+	private final Map<String, Collab> collabs = new HashMap<>();
+	/** The collabs that have jobs waiting, lowest score first */
+	private final TreeSet<Collab> ready = new TreeSet<>(
+			new Comparator<Collab>() {
+				@Override
+				public int compare(Collab a, Collab b) {
+					int cmp = Double.compare(a.key, b.key);
+					if (cmp == 0)
+						cmp = Long.compare(a.sequence, b.sequence);
+					return cmp;
+				}
+			});
+	/** Each job that has been taken and not finished */
+	private final Map<Integer, Entry> running = new HashMap<>();
+	private long nextSequence;
+	private long lastResort;
+	private int size;
+
+	public FairShareJobScheduler() {
+		// Settings come from the properties
+	}
+
+	/**
+	 * @param usageHalfLife
+	 *            How long (in ms) it takes for the usage of a collab to halve
+	 * @param agingRate
+	 *            The usage forgiven for each second a job waits
+	 * @param runningJobCharge
+	 *            The usage charged for each job that is running
+	 */
+	FairShareJobScheduler(long usageHalfLife, double agingRate,
+			double runningJobCharge) {
+		this.usageHalfLife = usageHalfLife;
+		this.agingRate = agingRate;
+		this.runningJobCharge = runningJobCharge;
+	}
+
+	/**
+	 * Sets the shares of the collabs.
+	 *
+	 * @param collabWeights
+	 *            A comma-separated list of <tt>collab=weight</tt>; collabs
+	 *            not listed have a weight of 1
+	 */
+	@Value("${scheduler.collabWeights:}")
+	void setCollabWeights(String collabWeights) {
+		for (String item : collabWeights.split(",")) {
+			if (item.trim().isEmpty())
+				continue;
+			String[] parts = item.split("=");
+			if (parts.length != 2)
+				throw new IllegalArgumentException("bad collab weight: "
+						+ item);
+			double weight = Double.parseDouble(parts[1].trim());
+			if (weight <= 0)
+				throw new IllegalArgumentException(
+						"collab weight must be positive: " + item);
+			weights.put(parts[0].trim(), weight);
+		}
+	}
+
+	/** The time now, in ms; can be replaced for testing */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	private static class Entry {
+		final Job job;
+		final Collab collab;
+		final long added;
+
+		Entry(Job job, Collab collab, long added) {
+			this.job = job;
+			this.collab = collab;
+			this.added = added;
+		}
+	}
+
+	private class Collab {
+		final String id;
+		final double weight;
+		final Deque<Entry> jobs = new ArrayDeque<>();
+		final WaitTimes waitTimes = new WaitTimes();
+		/** The usage as of {@link #usageTime} */
+		double usage;
+		long usageTime;
+		int nRunning;
+		/** The sort key; only changed while not in the ready set */
+		double key;
+		long sequence;
+
+		Collab(String id) {
+			this.id = id;
+			Double w = weights.get(id);
+			weight = (w == null) ? 1.0 : w;
+			usageTime = now();
+		}
+
+		void decay(long now) {
+			if (usageHalfLife > 0)
+				usage *= pow(0.5, (now - usageTime) / (double) usageHalfLife);
+			usageTime = now;
+		}
+
+		/**
+		 * Works out the key. This is the score plus the same amount for all
+		 * collabs (the aging rate times the time since the epoch), so it does
+		 * not change as time passes.
+		 */
+		void updateKey(long now) {
+			decay(now);
+			long headAdded = jobs.peek().added;
+			key = (usage + nRunning * runningJobCharge) / weight + agingRate
+					* (headAdded - epoch) / 1000.0;
+			sequence = nextSequence++;
+		}
+	}
+
+	private Collab getCollab(String id) {
+		Collab collab = collabs.get(id);
+		if (collab == null) {
+			collab = new Collab(id);
+			collabs.put(id, collab);
+		}
+		return collab;
+	}
+
+	/**
+	 * Changes a collab, keeping it in the right place in the ready set.
+	 */
+	private void rekey(Collab collab, long now) {
+		ready.remove(collab);
+		if (!collab.jobs.isEmpty()) {
+			collab.updateKey(now);
+			ready.add(collab);
+		}
+	}
+
+	/** Re-sorts the ready set, if the decay of usage has moved on enough */
+	private void resortIfStale(long now) {
+		if (now - lastResort < usageHalfLife / 16)
+			return;
+		lastResort = now;
+		Collab[] all = ready.toArray(new Collab[ready.size()]);
+		ready.clear();
+		for (Collab collab : all) {
+			collab.updateKey(now);
+			ready.add(collab);
+		}
+	}
+
+	@Override
+	public synchronized void addJob(Job job) {
+		long now = now();
+		Collab collab = getCollab(job.getCollabId());
+		collab.jobs.add(new Entry(job, collab, now));
+		if (collab.jobs.size() == 1)
+			rekey(collab, now);
+		size++;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized Job takeNextJob() throws InterruptedException {
+		while (ready.isEmpty())
+			wait();
+		return pollNextJob();
+	}
+
+	@Override
+	public synchronized Job pollNextJob() {
+		if (ready.isEmpty())
+			return null;
+		long now = now();
+		resortIfStale(now);
+
+		Collab collab = ready.pollFirst();
+		Entry entry = collab.jobs.remove();
+		size--;
+		collab.waitTimes.record(now - entry.added);
+		collab.nRunning++;
+		running.put(entry.job.getId(), entry);
+		rekey(collab, now);
+		return entry.job;
+	}
+
+	@Override
+	public synchronized void returnJob(Job job) {
+		Entry entry = running.remove(job.getId());
+		if (entry == null) {
+			addJob(job);
+			return;
+		}
+		// It was added before the jobs of the collab that are still waiting
+		Collab collab = entry.collab;
+		collab.nRunning--;
+		collab.jobs.addFirst(entry);
+		size++;
+		rekey(collab, now());
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void jobFinished(int id, long resourceUsage) {
+		Entry entry = running.remove(id);
+		if (entry == null)
+			return;
+		Collab collab = entry.collab;
+		long now = now();
+		boolean waiting = ready.remove(collab);
+		collab.decay(now);
+		collab.usage += resourceUsage;
+		collab.nRunning--;
+		if (waiting) {
+			collab.updateKey(now);
+			ready.add(collab);
+		}
+	}
+
+	@Override
+	public synchronized int size() {
+		return size;
+	}
+
+	@Override
+	public synchronized Map<String, WaitTimes> getWaitTimes() {
+		Map<String, WaitTimes> times = new HashMap<>();
+		for (Collab collab : collabs.values())
+			times.put(collab.id, collab.waitTimes);
+		return times;
+	}
+}
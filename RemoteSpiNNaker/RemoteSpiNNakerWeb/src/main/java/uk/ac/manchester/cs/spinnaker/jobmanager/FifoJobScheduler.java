@@ -0,0 +1,87 @@
+package uk.ac.manchester.cs.spinnaker.jobmanager;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
+
+/**
+ * Runs jobs in the order that they arrive.
+ */
+public class FifoJobScheduler implements JobScheduler {
+	private final BlockingDeque<Job> jobs = new LinkedBlockingDeque<>();
+	private final Map<Integer, Long> addedTimes = new HashMap<>();
+	/** When each job that has been taken and not finished was added */
+	private final Map<Integer, Long> takenAddedTimes = new HashMap<>();
+	private final Map<String, WaitTimes> waitTimes = new HashMap<>();
+
+	@Override
+	public void addJob(Job job) {
+		synchronized (addedTimes) {
+			addedTimes.put(job.getId(), System.currentTimeMillis());
+		}
+		jobs.offer(job);
+	}
+
+	@Override
+	public Job takeNextJob() throws InterruptedException {
+		Job job = jobs.take();
+		recordWait(job);
+		return job;
+	}
+
+	@Override
+	public Job pollNextJob() {
+		Job job = jobs.poll();
+		if (job != null)
+			recordWait(job);
+		return job;
+	}
+
+	private void recordWait(Job job) {
+		synchronized (addedTimes) {
+			Long added = addedTimes.remove(job.getId());
+			if (added != null) {
+				takenAddedTimes.put(job.getId(), added);
+				WaitTimes times = waitTimes.get(job.getCollabId());
+				if (times == null) {
+					times = new WaitTimes();
+					waitTimes.put(job.getCollabId(), times);
+				}
+				times.record(System.currentTimeMillis() - added);
+			}
+		}
+	}
+
+	@Override
+	public void returnJob(Job job) {
+		synchronized (addedTimes) {
+			Long added = takenAddedTimes.remove(job.getId());
+			addedTimes.put(job.getId(),
+					(added == null) ? System.currentTimeMillis() : added);
+		}
+		jobs.offerFirst(job);
+	}
+
+	@Override
+	public void jobFinished(int id, long resourceUsage) {
+		// Usage does not affect the order
+		synchronized (addedTimes) {
+			takenAddedTimes.remove(id);
+		}
+	}
+
+	@Override
+	public int size() {
+		return jobs.size();
+	}
+
+	@Override
+	public Map<String, WaitTimes> getWaitTimes() {
+		synchronized (addedTimes) {
+			return new HashMap<>(waitTimes);
+		}
+	}
+}
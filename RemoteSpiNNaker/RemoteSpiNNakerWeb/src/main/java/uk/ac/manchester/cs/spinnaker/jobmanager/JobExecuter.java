@@ -19,4 +19,11 @@ public interface JobExecuter {
 	 * immediately.
 	 */
 	void startExecuter();
+
+	/**
+	 * Gets when the external process (or VM) was started
+	 *
+	 * @return The time in ms, or 0 if it has not been started
+	 */
+	long getStartTime();
 }
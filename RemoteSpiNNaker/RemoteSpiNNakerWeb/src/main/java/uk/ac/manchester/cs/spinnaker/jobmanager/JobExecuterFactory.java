@@ -23,4 +23,11 @@ public interface JobExecuterFactory {
 	 */
 	JobExecuter createJobExecuter(JobManager manager, URL baseUrl)
 			throws IOException;
+
+	/**
+	 * Gets the largest number of executers that the factory will run at once.
+	 *
+	 * @return The maximum number of executers
+	 */
+	int getMaxExecuters();
 }
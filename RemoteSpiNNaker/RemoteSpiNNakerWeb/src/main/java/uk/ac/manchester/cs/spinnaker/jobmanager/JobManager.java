@@ -1,31 +1,60 @@
 package uk.ac.manchester.cs.spinnaker.jobmanager;
 
-import static java.io.File.createTempFile;
 import static java.lang.Math.ceil;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.nio.channels.Channels.newChannel;
+import static java.util.Collections.newSetFromMap;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.zip.GZIPInputStream.GZIP_MAGIC;
+import static javax.ws.rs.core.MediaType.APPLICATION_JSON;
+import static javax.ws.rs.core.Response.noContent;
+import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 import static javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR;
-import static org.apache.commons.io.FileUtils.copyInputStreamToFile;
-import static org.apache.commons.io.FileUtils.forceDelete;
-import static org.apache.commons.io.FileUtils.forceMkdir;
+import static javax.ws.rs.core.Response.Status.NOT_FOUND;
+import static org.apache.commons.io.FileUtils.deleteQuietly;
 import static org.apache.commons.io.FileUtils.forceMkdirParent;
 import static org.apache.commons.io.FileUtils.listFiles;
 import static org.slf4j.LoggerFactory.getLogger;
 
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPInputStream;
 
 import javax.annotation.PostConstruct;
+import javax.ws.rs.DefaultValue;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.WebApplicationException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.container.TimeoutHandler;
 import javax.ws.rs.core.Response;
 
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
@@ -38,6 +67,7 @@ import uk.ac.manchester.cs.spinnaker.job.nmpi.DataItem;
 import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
 import uk.ac.manchester.cs.spinnaker.machine.SpinnakerMachine;
 import uk.ac.manchester.cs.spinnaker.machinemanager.MachineManager;
+import uk.ac.manchester.cs.spinnaker.machinemanager.MachineStateListener;
 import uk.ac.manchester.cs.spinnaker.nmpi.NMPIQueueListener;
 import uk.ac.manchester.cs.spinnaker.nmpi.NMPIQueueManager;
 import uk.ac.manchester.cs.spinnaker.rest.OutputManager;
@@ -50,6 +80,9 @@ import uk.ac.manchester.cs.spinnaker.rest.OutputManager;
 public class JobManager implements NMPIQueueListener, JobManagerInterface {
 	private static final double CHIPS_PER_BOARD = 48.0;
 	private static final double CORES_PER_CHIP = 15.0;
+	private static final long TRANSFER_CHUNK_SIZE = 1 << 24;
+	/** How often (in ms) to check the executer pool when nothing happens */
+	private static final long POOL_CHECK_INTERVAL = 10000;
 	public static final String JOB_PROCESS_MANAGER_JAR = "RemoteSpiNNakerJobProcessManager.jar";
 
 	@Autowired
@@ -61,18 +94,73 @@ public class JobManager implements NMPIQueueListener, JobManagerInterface {
 	private final URL baseUrl;
 	@Autowired
 	private JobExecuterFactory jobExecuterFactory;
+	/** Decides which waiting job runs next */
+	@Autowired
+	private JobScheduler jobScheduler;
     @Value("${restartJobExecutorOnFailure}")
 	private boolean restartJobExecuterOnFailure;
+	/** How long (in ms) a request for the next job waits before giving up */
+    @Value("${jobmanager.nextJob.timeoutMs:60000}")
+	private long nextJobTimeout;
+	/** The most executers to run at once, or 0 for the factory's limit */
+    @Value("${jobmanager.executers.max:0}")
+	private int maxExecuters;
+	/**
+	 * The boards a job is expected to use, to work out how many jobs the
+	 * machines can run at once; 0 to not limit executers by the machines
+	 */
+    @Value("${jobmanager.executers.boardsPerJob:3}")
+	private int boardsPerJob;
+	/** The steady rate at which executers may be launched */
+    @Value("${jobmanager.executers.launchesPerSecond:2}")
+	private double launchesPerSecond;
+	/** The most executers that may be launched at once */
+    @Value("${jobmanager.executers.launchBurst:10}")
+	private int launchBurst;
+	/** How long (in ms) to wait before launching after a failure */
+    @Value("${jobmanager.executers.backoffMs:1000}")
+	private long launchBackoff;
+	/** The longest time (in ms) to wait after repeated failures */
+    @Value("${jobmanager.executers.maxBackoffMs:300000}")
+	private long maxLaunchBackoff;
 
 	private Logger logger = getLogger(getClass());
-	private Map<Integer, List<SpinnakerMachine>> allocatedMachines = new HashMap<>();
-	private BlockingQueue<Job> jobsToRun = new LinkedBlockingQueue<>();
+	/** The jobs that executers are running, by id */
+	private ConcurrentMap<Integer, JobRecord> jobRecords = new ConcurrentHashMap<>();
 	private Map<String, JobExecuter> jobExecuters = new HashMap<>();
-	private Map<String, Job> executorJobId = new HashMap<>();
-	private Map<Integer, File> jobOutputTempFiles = new HashMap<>();
-	private Map<Integer, Long> jobNCores = new HashMap<>();
-	private Map<Integer, Long> jobResourceUsage = new HashMap<>();
-	private Map<Integer, Map<String, String>> jobProvenance = new HashMap<>();
+	/**
+	 * The id of the job taken by each executer that has taken one; guarded
+	 * by {@link #jobExecuters}
+	 */
+	private Map<String, Integer> executerJobIds = new HashMap<>();
+	/** Executers being created; guarded by {@link #jobExecuters} */
+	private int nExecutersLaunching;
+	/**
+	 * The executers that have not yet taken a job; guarded by
+	 * {@link #jobExecuters}
+	 */
+	private Set<String> newExecuters = new HashSet<>();
+	/**
+	 * The suspended requests of executers for a job, in the order they were
+	 * made; guarded by {@link #jobExecuters}
+	 */
+	private Map<String, AsyncResponse> waitingExecuters = new LinkedHashMap<>();
+	private long totalExecuterStartTime;
+	private int nExecutersStarted;
+	/** Decides when to launch executers */
+	private ExecuterPoolController executerPool;
+	/** The most executers that will be run at once */
+	private int executerLimit;
+	/**
+	 * True if something has changed that may mean executers should be
+	 * launched; guarded by {@link #jobExecuters}
+	 */
+	private boolean poolChanged;
+	/**
+	 * True if launching has stopped after a failure, until the next job is
+	 * added; guarded by {@link #jobExecuters}
+	 */
+	private boolean launchingPaused;
 	private ThreadGroup threadGroup;
 
 	public JobManager(URL baseUrl) {
@@ -82,6 +170,21 @@ public class JobManager implements NMPIQueueListener, JobManagerInterface {
 	@PostConstruct
 	void startManager() {
 		threadGroup = new ThreadGroup("NMPI");
+		executerLimit = jobExecuterFactory.getMaxExecuters();
+		if (maxExecuters > 0)
+			executerLimit = min(executerLimit, maxExecuters);
+		executerPool = new ExecuterPoolController(executerLimit,
+				launchesPerSecond, launchBurst, launchBackoff,
+				maxLaunchBackoff);
+		Thread launcher = new Thread(threadGroup, new Runnable() {
+			@Override
+			public void run() {
+				runExecuterPool();
+			}
+		}, "ExecuterLauncher");
+		launcher.setDaemon(true);
+		launcher.start();
+
 		// Start the queue manager
 		queueManager.addListener(this);
 		new Thread(threadGroup, queueManager, "QueueManager").start();
@@ -93,39 +196,287 @@ public class JobManager implements NMPIQueueListener, JobManagerInterface {
 		logger.info("New job " + job.getId());
 
 		// Add the job to the set of jobs to be run
+		jobScheduler.addJob(job);
+		assignJobsToWaitingExecuters();
+
+		// Let the pool grow for the job
+		synchronized (jobExecuters) {
+			launchingPaused = false;
+		}
+		poolChanged();
+	}
+
+	/** Wakes the executer launcher to look at the pool again */
+	private void poolChanged() {
+		synchronized (jobExecuters) {
+			poolChanged = true;
+			jobExecuters.notifyAll();
+		}
+	}
+
+	/**
+	 * Launches executers as the pool controller allows, one at a time, for
+	 * as long as the manager runs.
+	 */
+	private void runExecuterPool() {
+		try {
+			while (true) {
+				int count = getExecutersToLaunch();
+				for (int i = 0; i < count; i++) {
+					executerPool.launched();
+					try {
+						launchExecuter();
+					} catch (IOException e) {
+						logger.error("Could not launch a new executer", e);
+						executerPool.failed();
+						break;
+					}
+				}
+
+				long delay = executerPool.getLaunchDelay();
+				synchronized (jobExecuters) {
+					if (!poolChanged)
+						jobExecuters.wait(delay > 0 ? delay
+								: POOL_CHECK_INTERVAL);
+					poolChanged = false;
+				}
+			}
+		} catch (InterruptedException e) {
+			logger.info("Executer launcher stopped");
+		}
+	}
+
+	private int getExecutersToLaunch() {
+		int queued = jobScheduler.size();
+		if (queued == 0)
+			return 0;
+		int machineCapacity = getMachineCapacity();
 		synchronized (jobExecuters) {
-			jobsToRun.offer(job);
+			if (launchingPaused)
+				return 0;
+			int running = jobExecuters.size();
+			int idle = running - executerJobIds.size();
+			return executerPool.getLaunchCount(queued, idle, running,
+					nExecutersLaunching, machineCapacity);
+		}
+	}
+
+	/** Gets how many jobs the machines can run at once, or -1 if not known */
+	private int getMachineCapacity() {
+		if (boardsPerJob <= 0)
+			return -1;
+		List<SpinnakerMachine> machines = machineManager.getMachines();
+		if (machines == null || machines.isEmpty())
+			return -1;
+		int capacity = 0;
+		for (SpinnakerMachine machine : machines)
+			capacity += max(1, machine.getnBoards() / boardsPerJob);
+		return capacity;
+	}
 
-			// Start an executer for the job
-			launchExecuter();
+	/**
+	 * Gets how many more jobs can be taken on: each executer that may run
+	 * holds one job, whether it is running it or the job is still waiting
+	 * for it in the scheduler.
+	 */
+	@Override
+	public int getFreeJobCapacity() {
+		int queued = jobScheduler.size();
+		synchronized (jobExecuters) {
+			return executerLimit - executerJobIds.size() - queued;
 		}
 	}
 
 	/**
-	 * You need to hold the lock on {@link #jobExecuters} when running this
-	 * method.
+	 * Creates and starts an executer. The executer is created without holding
+	 * the lock on {@link #jobExecuters}, as creating it can wait for a
+	 * resource (such as a virtual machine) to become free.
 	 */
 	private void launchExecuter() throws IOException {
-		JobExecuter executer = jobExecuterFactory.createJobExecuter(this,
-				baseUrl);
-		jobExecuters.put(executer.getExecuterId(), executer);
+		synchronized (jobExecuters) {
+			nExecutersLaunching++;
+		}
+		JobExecuter executer = null;
+		try {
+			executer = jobExecuterFactory.createJobExecuter(this, baseUrl);
+		} finally {
+			synchronized (jobExecuters) {
+				nExecutersLaunching--;
+				if (executer != null) {
+					jobExecuters.put(executer.getExecuterId(), executer);
+					newExecuters.add(executer.getExecuterId());
+					jobExecuters.notifyAll();
+				}
+			}
+		}
+		// The executer may have asked for a job before it was launched
+		assignJobsToWaitingExecuters();
 		executer.startExecuter();
 	}
 
+	/**
+	 * Gets the mean time from the process (or VM) of an executer being
+	 * started to it taking its first job.
+	 *
+	 * @return The mean time in milliseconds, or 0 if no executer has taken a
+	 *         job yet
+	 */
+	public long getMeanExecuterStartTime() {
+		synchronized (jobExecuters) {
+			if (nExecutersStarted == 0)
+				return 0;
+			return totalExecuterStartTime / nExecutersStarted;
+		}
+	}
+
+	/**
+	 * Gets how long jobs have waited to run, by collab.
+	 *
+	 * @return The waiting times of the jobs of each collab
+	 */
+	public Map<String, WaitTimes> getJobWaitTimes() {
+		return jobScheduler.getWaitTimes();
+	}
+
+	/**
+	 * Gets the next job, holding the calling thread until there is one. This
+	 * is not itself a REST method (the annotation here hides those of the
+	 * interface); {@link #waitForNextJob(String, AsyncResponse)} serves that
+	 * path without holding a thread.
+	 */
 	@Override
+	@Produces(APPLICATION_JSON)
 	public Job getNextJob(String executerId) {
 		try {
 			requireNonNull(executerId);
-			Job job = jobsToRun.take();
-			executorJobId.put(executerId, job);
-			logger.info("Executer " + executerId + " is running " + job.getId());
-			queueManager.setJobRunning(job.getId());
+			/*
+			 * Executers may be started before they are launched (e.g. to have
+			 * them ready in advance); they may not take a job until then.
+			 */
+			synchronized (jobExecuters) {
+				while (!jobExecuters.containsKey(executerId))
+					jobExecuters.wait();
+			}
+			Job job = jobScheduler.takeNextJob();
+			jobRecords.put(job.getId(), new JobRecord(job, executerId));
+			assignJob(executerId, job);
 			return job;
 		} catch (InterruptedException e) {
 			return null;
 		}
 	}
 
+	/**
+	 * Gets the next job for an executer. The request is suspended until
+	 * there is a job for the executer, so waiting executers do not hold any
+	 * threads. If no job comes within the timeout, the response is empty,
+	 * and the executer should ask again.
+	 *
+	 * @param executerId
+	 *            The id of the executer asking
+	 * @param response
+	 *            Where to send the job
+	 */
+	@GET
+	@Path("next")
+	@Produces(APPLICATION_JSON)
+	public void waitForNextJob(@QueryParam("executerId") String executerId,
+			@Suspended AsyncResponse response) {
+		final String id = requireNonNull(executerId);
+		response.setTimeoutHandler(new TimeoutHandler() {
+			@Override
+			public void handleTimeout(AsyncResponse timedOut) {
+				synchronized (jobExecuters) {
+					if (waitingExecuters.get(id) != timedOut)
+						return;
+					waitingExecuters.remove(id);
+				}
+				timedOut.resume(noContent().build());
+			}
+		});
+		if (nextJobTimeout > 0)
+			response.setTimeout(nextJobTimeout, MILLISECONDS);
+
+		AsyncResponse replaced;
+		synchronized (jobExecuters) {
+			replaced = waitingExecuters.put(id, response);
+		}
+		if (replaced != null)
+			replaced.resume(noContent().build());
+		assignJobsToWaitingExecuters();
+	}
+
+	/**
+	 * Gives waiting jobs to the executers that are waiting for them, while
+	 * there are both.
+	 */
+	private void assignJobsToWaitingExecuters() {
+		while (true) {
+			String executerId = null;
+			AsyncResponse response;
+			Job job;
+			synchronized (jobExecuters) {
+				for (String id : waitingExecuters.keySet())
+					if (jobExecuters.containsKey(id)) {
+						executerId = id;
+						break;
+					}
+				if (executerId == null)
+					return;
+				job = jobScheduler.pollNextJob();
+				if (job == null)
+					return;
+				response = waitingExecuters.remove(executerId);
+			}
+
+			/*
+			 * The executer may ask about the job as soon as it has it, so the
+			 * record must be there first
+			 */
+			JobRecord record = new JobRecord(job, executerId);
+			jobRecords.put(job.getId(), record);
+			if (response.resume(job))
+				assignJob(executerId, job);
+			else {
+				// The request has gone away; let someone else run the job
+				logger.warn("Executer " + executerId
+						+ " stopped waiting before it was given job "
+						+ job.getId());
+				jobRecords.remove(job.getId(), record);
+				jobScheduler.returnJob(job);
+			}
+		}
+	}
+
+	/**
+	 * Notes that an executer has been given a job, whose record has already
+	 * been made
+	 */
+	private void assignJob(String executerId, Job job) {
+		synchronized (jobExecuters) {
+			executerJobIds.put(executerId, job.getId());
+		}
+		logger.info("Executer " + executerId + " is running " + job.getId());
+		executerStarted(executerId);
+		queueManager.setJobRunning(job.getId());
+	}
+
+	private void executerStarted(String executerId) {
+		executerPool.succeeded();
+		synchronized (jobExecuters) {
+			JobExecuter executer = jobExecuters.get(executerId);
+			if (!newExecuters.remove(executerId) || executer == null
+					|| executer.getStartTime() == 0)
+				return;
+			long startTime = System.currentTimeMillis()
+					- executer.getStartTime();
+			totalExecuterStartTime += startTime;
+			nExecutersStarted++;
+			logger.debug("Executer " + executerId + " took " + startTime
+					+ "ms from starting to taking a job");
+		}
+	}
+
 	@Override
 	public SpinnakerMachine getLargestJobMachine(int id, double runTime) {
 		// TODO Check quota to get the largest machine within the quota
@@ -142,6 +493,7 @@ public class JobManager implements NMPIQueueListener, JobManagerInterface {
 	public SpinnakerMachine getJobMachine(int id, int nCores, int nChips,
 			int nBoards, double runTime) {
 		// TODO Check quota
+		JobRecord record = getRecord(id);
 
 		logger.info("Request for " + nCores + " cores or " + nChips
 				+ " chips or " + nBoards + " boards for " + (runTime / 1000.0)
@@ -177,86 +529,213 @@ public class JobManager implements NMPIQueueListener, JobManagerInterface {
 			nBoardsToRequest = (int) nBoardsExact;
 		}
 
-		SpinnakerMachine machine = allocateMachineForJob(id, nBoardsToRequest);
+		SpinnakerMachine machine = allocateMachineForJob(record,
+				nBoardsToRequest, runTime);
 		logger.info("Running " + id + " on " + machine.getMachineName());
+		queueManager.setJobMachineAllocated(id);
 		long resourceUsage = (long) ((runTime / 1000.0) * quotaNCores);
 		logger.info("Resource usage " + resourceUsage);
-		synchronized (jobResourceUsage) {
-			jobResourceUsage.put(id, resourceUsage);
-			jobNCores.put(id, quotaNCores);
-		}
+		record.setResources(quotaNCores, resourceUsage);
 
 		return machine;
 	}
 
 	/** Get a machine to run the job on */
-	private SpinnakerMachine allocateMachineForJob(int id, int nBoardsToRequest) {
-		SpinnakerMachine machine = machineManager
-				.getNextAvailableMachine(nBoardsToRequest);
-		synchronized (allocatedMachines) {
-			if (!allocatedMachines.containsKey(id))
-				allocatedMachines.put(id, new ArrayList<SpinnakerMachine>());
-			allocatedMachines.get(id).add(machine);
+	private SpinnakerMachine allocateMachineForJob(JobRecord record,
+			int nBoardsToRequest, double runTime) {
+		SpinnakerMachine machine = machineManager.getNextAvailableMachine(
+				nBoardsToRequest, runTime);
+		if (!record.addMachine(machine)) {
+			// The job ended while waiting for the machine
+			machineManager.releaseMachine(machine);
+			throw new WebApplicationException(NOT_FOUND);
 		}
 		return machine;
 	}
 
-	private List<SpinnakerMachine> getMachineForJob(int id) {
-		synchronized (allocatedMachines) {
-			return allocatedMachines.get(id);
+	/** Gets the record of a running job, or fails the request */
+	private JobRecord getRecord(int id) {
+		JobRecord record = jobRecords.get(id);
+		if (record == null) {
+			logger.warn("Job " + id + " is not running");
+			throw new WebApplicationException(NOT_FOUND);
 		}
+		return record;
 	}
-	
+
+	private List<SpinnakerMachine> getMachineForJob(int id) {
+		JobRecord record = jobRecords.get(id);
+		if (record == null)
+			return null;
+		return record.getMachines();
+	}
+
 	@Override
 	public void extendJobMachineLease(int id, double runTime) {
 		// TODO Check quota that the lease can be extended
 
-		long usage;
-		synchronized (jobResourceUsage) {
-			usage = (long) (jobNCores.get(id) * (runTime / 1000.0));
-			jobResourceUsage.put(id, usage);
-		}
+		JobRecord record = getRecord(id);
+		long usage = record.setRunTime(runTime);
 		logger.info("Usage for " + id + " now " + usage);
+		for (SpinnakerMachine machine : record.getMachines())
+			machineManager.setMachineRunTime(machine, runTime);
 	}
 
+	/**
+	 * Checks the lease of the machines of a job, holding the calling thread
+	 * while waiting for a change. This is not itself a REST method (the
+	 * annotation here hides those of the interface);
+	 * {@link #waitForMachineLease(int, int, AsyncResponse)} serves that path
+	 * without holding a thread.
+	 */
 	@Override
+	@Produces(APPLICATION_JSON)
 	public JobMachineAllocated checkMachineLease(int id, int waitTime) {
 		List<SpinnakerMachine> machines = getMachineForJob(id);
 
 		// Return false if any machine is gone
-		for (SpinnakerMachine machine : machines)
-			if (!machineManager.isMachineAvailable(machine))
-				return new JobMachineAllocated(false);
+		if (!allMachinesAvailable(machines))
+			return new JobMachineAllocated(false);
 
 		// Wait for the state change of any machine
 		waitForAnyMachineStateChange(waitTime, machines);
 
 		// Again check for a machine which is gone
+		return new JobMachineAllocated(allMachinesAvailable(machines));
+	}
+
+	/**
+	 * Checks the lease of the machines of a job. The request is suspended
+	 * until one of the machines changes state or the time runs out, so
+	 * waiting does not hold any threads.
+	 *
+	 * @param id
+	 *            The id of the job
+	 * @param waitTime
+	 *            The longest time (in ms) to wait for a change
+	 * @param response
+	 *            Where to send whether the job still has its machines
+	 */
+	@GET
+	@Path("{id}/machine/checkLease")
+	@Produces(APPLICATION_JSON)
+	public void waitForMachineLease(@PathParam("id") int id,
+			@QueryParam("waitTime") @DefaultValue("10000") int waitTime,
+			@Suspended AsyncResponse response) {
+		List<SpinnakerMachine> machines = getMachineForJob(id);
+		if (!allMachinesAvailable(machines) || waitTime <= 0) {
+			response.resume(new JobMachineAllocated(
+					allMachinesAvailable(machines)));
+			return;
+		}
+
+		LeaseWaiter waiter = new LeaseWaiter(machines, response);
+		response.setTimeoutHandler(waiter);
+		response.setTimeout(waitTime, MILLISECONDS);
+		machineManager.addStateListener(waiter);
+		// In case a machine went before the listener was added
+		if (!allMachinesAvailable(machines))
+			waiter.finish();
+	}
+
+	private boolean allMachinesAvailable(List<SpinnakerMachine> machines) {
+		if (machines == null)
+			return false;
 		for (SpinnakerMachine machine : machines)
 			if (!machineManager.isMachineAvailable(machine))
-				return new JobMachineAllocated(false);
-
-		return new JobMachineAllocated(true);
+				return false;
+		return true;
 	}
 
-	private void waitForAnyMachineStateChange(final int waitTime,
+	/**
+	 * Makes a set of the machines given, by identity, as the parts of one
+	 * machine given to different jobs may be equal to each other.
+	 */
+	private static Set<SpinnakerMachine> identitySet(
 			List<SpinnakerMachine> machines) {
-		final BlockingQueue<Object> stateChangeSync = new LinkedBlockingQueue<>();
-		for (final SpinnakerMachine machine : machines) {
-			Thread stateThread = new Thread(threadGroup, new Runnable() {
-				@Override
-				public void run() {
-					machineManager.waitForMachineStateChange(machine, waitTime);
-					stateChangeSync.offer(this);
-				}
-			}, "waiting for " + machine);
-			stateThread.setDaemon(true);
-			stateThread.start();
+		Set<SpinnakerMachine> set = newSetFromMap(
+				new IdentityHashMap<SpinnakerMachine, Boolean>());
+		set.addAll(machines);
+		return set;
+	}
+
+	/**
+	 * Answers a suspended lease check when one of the machines of the job
+	 * changes state, or when the check times out, whichever is first.
+	 */
+	private class LeaseWaiter implements MachineStateListener, TimeoutHandler {
+		private final Set<SpinnakerMachine> machines;
+		private final List<SpinnakerMachine> machineList;
+		private final AsyncResponse response;
+		private final AtomicBoolean finished = new AtomicBoolean();
+
+		LeaseWaiter(List<SpinnakerMachine> machines, AsyncResponse response) {
+			this.machines = identitySet(machines);
+			this.machineList = machines;
+			this.response = response;
+		}
+
+		@Override
+		public void machineStateChanged(SpinnakerMachine machine) {
+			if (machines.contains(machine))
+				finish();
+		}
+
+		@Override
+		public void handleTimeout(AsyncResponse timedOut) {
+			finish();
+		}
+
+		void finish() {
+			if (!finished.compareAndSet(false, true))
+				return;
+			machineManager.removeStateListener(this);
+			response.resume(new JobMachineAllocated(
+					allMachinesAvailable(machineList)));
 		}
+	}
+
+	/**
+	 * Waits until any of the given machines changes state, or the time runs
+	 * out. No thread is used other than the caller's.
+	 */
+	private void waitForAnyMachineStateChange(int waitTime,
+			List<SpinnakerMachine> machines) {
+		StateChangeWaiter waiter = new StateChangeWaiter(machines);
+		machineManager.addStateListener(waiter);
 		try {
-			stateChangeSync.take();
+			waiter.await(waitTime);
 		} catch (InterruptedException e) {
 			// Does Nothing
+		} finally {
+			machineManager.removeStateListener(waiter);
+		}
+	}
+
+	/** Wakes the waiting thread when one of a set of machines changes */
+	private static class StateChangeWaiter implements MachineStateListener {
+		private final Set<SpinnakerMachine> machines;
+		private boolean changed;
+
+		StateChangeWaiter(List<SpinnakerMachine> machines) {
+			this.machines = identitySet(machines);
+		}
+
+		@Override
+		public synchronized void machineStateChanged(SpinnakerMachine machine) {
+			if (machines.contains(machine)) {
+				changed = true;
+				notifyAll();
+			}
+		}
+
+		synchronized void await(long waitTime) throws InterruptedException {
+			long deadline = System.currentTimeMillis() + waitTime;
+			long remaining = waitTime;
+			while (!changed && remaining > 0) {
+				wait(remaining);
+				remaining = deadline - System.currentTimeMillis();
+			}
 		}
 	}
 
@@ -272,23 +751,20 @@ public class JobManager implements NMPIQueueListener, JobManagerInterface {
 			InputStream input) {
 		requireNonNull(output);
 		requireNonNull(input);
+		File outputDirectory;
 		try {
-			if (!jobOutputTempFiles.containsKey(id)) {
-				File tempOutputDir = createTempFile("jobOutput", ".tmp");
-				forceDelete(tempOutputDir);
-				forceMkdir(tempOutputDir);
-				jobOutputTempFiles.put(id, tempOutputDir);
-			}
+			outputDirectory = getRecord(id).makeOutputDirectory(
+					outputManager.getStagingDirectory());
 		} catch (IOException e) {
 			logger.error("Error creating temporary output directory for " + id,
 					e);
 			throw new WebApplicationException(INTERNAL_SERVER_ERROR);
 		}
 
-		File outputFile = new File(jobOutputTempFiles.get(id), output);
+		File outputFile = new File(outputDirectory, output);
 		try {
 			forceMkdirParent(outputFile);
-			copyInputStreamToFile(input, outputFile);
+			writeToFile(input, outputFile);
 		} catch (IOException e) {
 			logger.error("Error writing file " + outputFile + " for job " + id,
 					e);
@@ -296,8 +772,78 @@ public class JobManager implements NMPIQueueListener, JobManagerInterface {
 		}
 	}
 
-	private List<DataItem> getOutputFiles(String projectId, int id,
+	@Override
+	public void addOutputs(String projectId, int id, InputStream archive) {
+		requireNonNull(archive);
+		File outputDirectory;
+		try {
+			outputDirectory = getRecord(id).makeOutputDirectory(
+					outputManager.getStagingDirectory());
+		} catch (IOException e) {
+			logger.error("Error creating temporary output directory for " + id,
+					e);
+			throw new WebApplicationException(INTERNAL_SERVER_ERROR);
+		}
+
+		// Each file is written as it arrives; the archive is never stored
+		int nFiles = 0;
+		try (TarArchiveInputStream tar = new TarArchiveInputStream(
+				uncompressed(archive))) {
+			TarArchiveEntry entry;
+			while ((entry = tar.getNextTarEntry()) != null) {
+				if (!entry.isFile())
+					continue;
+				File outputFile = new File(outputDirectory, entry.getName());
+				if (!outputFile.getCanonicalPath().startsWith(
+						outputDirectory.getCanonicalPath() + File.separator)) {
+					logger.error("Output " + entry.getName() + " for job " + id
+							+ " is outside the output directory");
+					throw new WebApplicationException(BAD_REQUEST);
+				}
+				forceMkdirParent(outputFile);
+				writeToFile(new CloseShieldInputStream(tar), outputFile);
+				nFiles++;
+			}
+		} catch (IOException e) {
+			logger.error("Error unpacking outputs for job " + id, e);
+			throw new WebApplicationException(INTERNAL_SERVER_ERROR);
+		}
+		logger.debug("Added " + nFiles + " outputs for job " + id);
+	}
+
+	/** Gets the contents of a stream that may be gzipped */
+	private static InputStream uncompressed(InputStream input)
+			throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(input);
+		buffered.mark(2);
+		int magic = buffered.read() | (buffered.read() << 8);
+		buffered.reset();
+		if (magic == GZIP_MAGIC)
+			return new GZIPInputStream(buffered);
+		return buffered;
+	}
+
+	/**
+	 * Writes a stream to a file. This is not a zero-copy transfer: the
+	 * request body is not a file, so the channel still copies it through a
+	 * buffer. The copy that is saved is the later one, as the file is written
+	 * in the staging area on the results volume and so is published by a
+	 * rename.
+	 */
+	private static void writeToFile(InputStream input, File file)
+			throws IOException {
+		try (ReadableByteChannel source = newChannel(input);
+				FileChannel target = new FileOutputStream(file).getChannel()) {
+			long position = 0, n;
+			while ((n = target.transferFrom(source, position,
+					TRANSFER_CHUNK_SIZE)) > 0)
+				position += n;
+		}
+	}
+
+	private List<DataItem> getOutputFiles(String projectId, JobRecord record,
 			String baseFile, List<String> outputs) throws IOException {
+		int id = record.job.getId();
 		List<DataItem> outputItems = new ArrayList<>();
 		if (outputs != null) {
 			List<File> outputFiles = new ArrayList<>();
@@ -306,44 +852,42 @@ public class JobManager implements NMPIQueueListener, JobManagerInterface {
 			outputItems.addAll(outputManager.addOutputs(projectId, id,
 					new File(baseFile), outputFiles));
 		}
-		if (jobOutputTempFiles.containsKey(id)) {
-			File directory = jobOutputTempFiles.get(id);
+		File directory = record.getOutputDirectory();
+		if (directory != null)
 			outputItems.addAll(outputManager.addOutputs(projectId, id,
 					directory, listFiles(directory, null, true)));
-		}
 		return outputItems;
 	}
 
 	@Override
 	public void addProvenance(int id, String item, String value) {
-		synchronized (jobProvenance) {
-			if (!jobProvenance.containsKey(id))
-				jobProvenance.put(id, new HashMap<String, String>());
-			jobProvenance.get(id).put(requireNonNull(item),
-					requireNonNull(value));
-		}
+		getRecord(id).addProvenance(requireNonNull(item),
+				requireNonNull(value));
 	}
 
-	private Map<String, String> getProvenance(int id) {
-		Map<String, String> prov;
-		synchronized (jobProvenance) {
-			prov = jobProvenance.remove(id);
-		}
-		if (prov != null && prov.isEmpty())
-			prov = null;
-		return prov;
+	/**
+	 * Ends a job: marks its record as finished, drops it, releases its
+	 * machines and tells the scheduler what it used.
+	 *
+	 * @return The record of the job, or <tt>null</tt> if the job was not
+	 *         running
+	 */
+	private JobRecord endJob(int id) {
+		JobRecord record = jobRecords.get(id);
+		if (record == null || !record.finish())
+			return null;
+		jobRecords.remove(id, record);
+		for (SpinnakerMachine machine : record.getMachines())
+			machineManager.releaseMachine(machine);
+		jobScheduler.jobFinished(id, record.getResourceUsage());
+		return record;
 	}
 
-	private long getResourceUsage(int id) {
-		long resourceUsage = 0;
-		synchronized (jobResourceUsage) {
-			Long ru = jobResourceUsage.remove(id);
-			if (ru != null) {
-				resourceUsage = ru;
-				jobNCores.remove(id);
-			}
-		}
-		return resourceUsage;
+	/** Removes what is left of the uploaded outputs of a job */
+	private void deleteOutputDirectory(JobRecord record) {
+		File directory = record.getOutputDirectory();
+		if (directory != null)
+			deleteQuietly(directory);
 	}
 
 	@Override
@@ -354,29 +898,20 @@ public class JobManager implements NMPIQueueListener, JobManagerInterface {
 		requireNonNull(baseDirectory);
 		requireNonNull(outputs);
 		logger.debug("Marking job " + id + " as finished");
-		releaseAllocatedMachines(id);
-
-		// Do these before anything that can throw
-		long resourceUsage = getResourceUsage(id);
-		Map<String, String> prov = getProvenance(id);
+		JobRecord record = endJob(id);
+		if (record == null) {
+			logger.warn("Job " + id + " finished, but was not running");
+			return;
+		}
 
 		try {
 			queueManager.setJobFinished(id, logToAppend,
-					getOutputFiles(projectId, id, baseDirectory, outputs),
-					resourceUsage, prov);
+					getOutputFiles(projectId, record, baseDirectory, outputs),
+					record.getResourceUsage(), record.getProvenance());
 		} catch (IOException e) {
 			logger.error("Error creating URLs while updating job", e);
-		}
-	}
-
-	/** @return <tt>true</tt> if there were machines removed by this. */
-	private boolean releaseAllocatedMachines(int id) {
-		synchronized (allocatedMachines) {
-			List<SpinnakerMachine> machines = allocatedMachines.remove(id);
-			if (machines != null)
-				for (SpinnakerMachine machine : machines)
-					machineManager.releaseMachine(machine);
-			return machines != null;
+		} finally {
+			deleteOutputDirectory(record);
 		}
 	}
 
@@ -392,19 +927,22 @@ public class JobManager implements NMPIQueueListener, JobManagerInterface {
 		requireNonNull(stackTrace);
 
 		logger.debug("Marking job " + id + " as error");
-		releaseAllocatedMachines(id);
+		JobRecord record = endJob(id);
+		if (record == null) {
+			logger.warn("Job " + id + " failed, but was not running");
+			return;
+		}
 
 		Exception exception = reconstructRemoteException(error, stackTrace);
-		// Do these before anything that can throw
-		long resourceUsage = getResourceUsage(id);
-		Map<String, String> prov = getProvenance(id);
-
 		try {
 			queueManager.setJobError(id, logToAppend,
-					getOutputFiles(projectId, id, baseDirectory, outputs),
-					exception, resourceUsage, prov);
+					getOutputFiles(projectId, record, baseDirectory, outputs),
+					exception, record.getResourceUsage(),
+					record.getProvenance());
 		} catch (IOException e) {
 			logger.error("Error creating URLs while updating job", e);
+		} finally {
+			deleteOutputDirectory(record);
 		}
 	}
 
@@ -423,50 +961,48 @@ public class JobManager implements NMPIQueueListener, JobManagerInterface {
 
 	public void setExecutorExited(String executorId, String logToAppend) {
 		requireNonNull(logToAppend);
-		Job job = executorJobId.remove(requireNonNull(executorId));
+		requireNonNull(executorId);
+		Integer jobId;
+		AsyncResponse waiting;
 		synchronized (jobExecuters) {
 			jobExecuters.remove(executorId);
+			newExecuters.remove(executorId);
+			waiting = waitingExecuters.remove(executorId);
+			jobId = executerJobIds.remove(executorId);
 		}
-		if (job != null) {
-			int id = job.getId();
+		if (waiting != null)
+			waiting.cancel();
+		if (jobId != null) {
+			int id = jobId;
 			logger.debug("Job " + id + " has exited");
 
-			if (releaseAllocatedMachines(id)) {
+			JobRecord record = endJob(id);
+			if (record != null) {
 				logger.debug("Job " + id + " has not exited cleanly");
 				try {
-					long resourceUsage = getResourceUsage(id);
-					Map<String, String> prov = getProvenance(id);
-					String projectId = new File(job.getCollabId()).getName();
+					String projectId = new File(record.job.getCollabId())
+							.getName();
 					queueManager.setJobError(id, logToAppend,
-							getOutputFiles(projectId, id, null, null),
+							getOutputFiles(projectId, record, null, null),
 							new Exception("Job did not finish cleanly"),
-							resourceUsage, prov);
+							record.getResourceUsage(), record.getProvenance());
 				} catch (IOException e) {
 					logger.error("Error creating URLs while updating job", e);
+				} finally {
+					deleteOutputDirectory(record);
 				}
 			}
 		} else {
 			logger.error("An executer has exited.  This could indicate an error!");
 			logger.error(logToAppend);
 
-			if (restartJobExecuterOnFailure)
-				restartExecuters();
-		}
-	}
-
-	private void restartExecuters() {
-		try {
-			int jobSize;
-			synchronized (jobsToRun) {
-				jobSize = jobsToRun.size();
-			}
-			synchronized (jobExecuters) {
-				while (jobSize > jobExecuters.size())
-					launchExecuter();
-			}
-		} catch (IOException e) {
-			logger.error("Could not launch a new executer", e);
+			executerPool.failed();
+			if (!restartJobExecuterOnFailure)
+				synchronized (jobExecuters) {
+					launchingPaused = true;
+				}
 		}
+		poolChanged();
 	}
 
 	@Override
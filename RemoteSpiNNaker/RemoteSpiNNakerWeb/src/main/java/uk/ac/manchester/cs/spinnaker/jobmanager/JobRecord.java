@@ -0,0 +1,123 @@
+package uk.ac.manchester.cs.spinnaker.jobmanager;
+
+import static java.nio.file.Files.createTempDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
+import uk.ac.manchester.cs.spinnaker.machine.SpinnakerMachine;
+
+/**
+ * What the job manager knows of a job that an executer is running. A record
+ * is finished exactly once, when the job finishes, fails or its executer
+ * exits; after that, no more machines or outputs may be added to it.
+ */
+class JobRecord {
+	final Job job;
+	final String executerId;
+	private final List<SpinnakerMachine> machines = new ArrayList<>();
+	private final Map<String, String> provenance = new HashMap<>();
+	private File outputDirectory;
+	private long nCores;
+	private long resourceUsage;
+	private boolean finished;
+
+	JobRecord(Job job, String executerId) {
+		this.job = job;
+		this.executerId = executerId;
+	}
+
+	/**
+	 * Adds a machine to those allocated to the job.
+	 *
+	 * @return False if the job has already finished, so the machine should
+	 *         be released
+	 */
+	synchronized boolean addMachine(SpinnakerMachine machine) {
+		if (finished)
+			return false;
+		machines.add(machine);
+		return true;
+	}
+
+	synchronized List<SpinnakerMachine> getMachines() {
+		return new ArrayList<>(machines);
+	}
+
+	synchronized void setResources(long nCores, long resourceUsage) {
+		this.nCores = nCores;
+		this.resourceUsage = resourceUsage;
+	}
+
+	/**
+	 * Updates the resources used, given how long the job has run for.
+	 *
+	 * @param runTime
+	 *            The time the job has run for, in ms
+	 * @return The resources used, in core-seconds
+	 */
+	synchronized long setRunTime(double runTime) {
+		resourceUsage = (long) (nCores * (runTime / 1000.0));
+		return resourceUsage;
+	}
+
+	synchronized long getResourceUsage() {
+		return resourceUsage;
+	}
+
+	synchronized void addProvenance(String item, String value) {
+		provenance.put(item, value);
+	}
+
+	/** @return The provenance of the job, or <tt>null</tt> if there is none */
+	synchronized Map<String, String> getProvenance() {
+		if (provenance.isEmpty())
+			return null;
+		return new HashMap<>(provenance);
+	}
+
+	/**
+	 * Gets the directory to hold the outputs uploaded by the job, creating it
+	 * if needed.
+	 *
+	 * @param stagingDirectory
+	 *            The directory in which to create it
+	 * @throws IOException
+	 *             If the job has finished, or the directory cannot be made
+	 */
+	synchronized File makeOutputDirectory(File stagingDirectory)
+			throws IOException {
+		if (finished)
+			throw new IOException("job " + job.getId() + " has finished");
+		if (outputDirectory == null)
+			outputDirectory = createTempDirectory(stagingDirectory.toPath(),
+					"job" + job.getId() + "-").toFile();
+		return outputDirectory;
+	}
+
+	/**
+	 * @return The directory of outputs uploaded by the job, or <tt>null</tt>
+	 *         if nothing was uploaded
+	 */
+	synchronized File getOutputDirectory() {
+		return outputDirectory;
+	}
+
+	/**
+	 * Marks the job as finished.
+	 *
+	 * @return True if this call finished the job, false if it had already
+	 *         finished
+	 */
+	synchronized boolean finish() {
+		if (finished)
+			return false;
+		finished = true;
+		return true;
+	}
+}
@@ -0,0 +1,66 @@
+package uk.ac.manchester.cs.spinnaker.jobmanager;
+
+import java.util.Map;
+
+import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
+
+/**
+ * Decides the order in which waiting jobs are given to executers.
+ *
+ * @see FifoJobScheduler
+ * @see FairShareJobScheduler
+ */
+public interface JobScheduler {
+	/**
+	 * Adds a job to those waiting to run.
+	 *
+	 * @param job
+	 *            The job to add
+	 */
+	void addJob(Job job);
+
+	/**
+	 * Takes the next job to run, waiting until there is one.
+	 *
+	 * @return The job
+	 * @throws InterruptedException
+	 *             If interrupted while waiting
+	 */
+	Job takeNextJob() throws InterruptedException;
+
+	/**
+	 * Takes the next job to run, if there is one.
+	 *
+	 * @return The job, or <tt>null</tt> if no job is waiting
+	 */
+	Job pollNextJob();
+
+	/**
+	 * Puts back a job that was taken but could not be given to an executer.
+	 * The job goes back where it was, keeping the time it was added.
+	 *
+	 * @param job
+	 *            The job to put back
+	 */
+	void returnJob(Job job);
+
+	/**
+	 * Notes that a job that was taken has finished.
+	 *
+	 * @param id
+	 *            The id of the job
+	 * @param resourceUsage
+	 *            The resources used by the job, in core-seconds
+	 */
+	void jobFinished(int id, long resourceUsage);
+
+	/** @return The number of jobs waiting to run */
+	int size();
+
+	/**
+	 * Gets how long jobs have waited to run, by collab.
+	 *
+	 * @return The waiting times of the jobs of each collab
+	 */
+	Map<String, WaitTimes> getWaitTimes();
+}
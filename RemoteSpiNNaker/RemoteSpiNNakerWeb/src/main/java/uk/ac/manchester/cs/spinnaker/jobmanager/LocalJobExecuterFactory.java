@@ -2,7 +2,10 @@ package uk.ac.manchester.cs.spinnaker.jobmanager;
 
 import static java.io.File.createTempFile;
 import static java.io.File.pathSeparator;
+import static java.lang.Math.min;
 import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.apache.commons.io.FileUtils.copyToFile;
 import static org.apache.commons.io.FileUtils.forceDeleteOnExit;
 import static org.apache.commons.io.FileUtils.forceMkdirParent;
@@ -19,13 +22,18 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.URL;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Deque;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 
 import org.slf4j.Logger;
 import org.springframework.beans.factory.annotation.Value;
@@ -47,8 +55,44 @@ public class LocalJobExecuterFactory implements JobExecuterFactory {
 	private boolean liveUploadOutput;
     @Value("${requestSpiNNakerMachine}")
 	private boolean requestSpiNNakerMachine;
+    @Value("${local.maxExecuters:10}")
+	private int maxExecuters;
+	/** The number of idle, started executers to keep ready */
+	@Value("${local.pool.minIdle:2}")
+	private int poolMinIdle;
+	/** The most idle, started executers to keep ready */
+	@Value("${local.pool.maxIdle:5}")
+	private int poolMaxIdle;
+	/**
+	 * How often (in ms) to shrink the pool by the idle executers that were
+	 * not needed since it was last shrunk; 0 to never shrink it
+	 */
+	@Value("${local.pool.trimIntervalMs:300000}")
+	private long poolTrimInterval;
 	private final ThreadGroup threadGroup;
 
+	/**
+	 * Executers whose process has been started, and is waiting to be given a
+	 * job, but which have not yet been handed out
+	 */
+	private final Deque<Executer> idleExecuters = new ArrayDeque<>();
+	/**
+	 * The number of idle executers to keep; grows when the pool runs dry, and
+	 * shrinks when idle executers go unused
+	 */
+	private int poolSize;
+	/** The fewest idle executers there have been since the pool was trimmed */
+	private int leastIdle;
+	/** The executers handed out whose process has not yet stopped */
+	private int nClaimed;
+	private boolean closed;
+	private ScheduledExecutorService poolTrimmer;
+	/** The manager that the idle executers work for, once known */
+	private JobManager poolManager;
+	private URL poolBaseUrl;
+	private int poolHits;
+	private int poolMisses;
+
 	private List<File> jobProcessManagerClasspath = new ArrayList<>();
 	private File jobExecuterDirectory = null;
 	private static Logger log = getLogger(Executer.class);
@@ -59,6 +103,24 @@ public class LocalJobExecuterFactory implements JobExecuterFactory {
 
 	@PostConstruct
 	void installJobExecuter() throws IOException {
+		poolSize = poolMinIdle;
+		if (poolTrimInterval > 0) {
+			poolTrimmer = newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(threadGroup, r, "Executer pool trimmer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			poolTrimmer.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					trimPool();
+				}
+			}, poolTrimInterval, poolTrimInterval, MILLISECONDS);
+		}
+
 		// Find the JobManager resource
 		InputStream jobManagerStream = getClass().getResourceAsStream(
 				"/" + JOB_PROCESS_MANAGER_ZIP);
@@ -89,9 +151,48 @@ public class LocalJobExecuterFactory implements JobExecuterFactory {
 		}
 	}
 
+	/**
+	 * Gets an executer. An idle executer from the pool is used if there is
+	 * one, as its process has already been started; otherwise a new one is
+	 * made. Either way, the pool is then topped up.
+	 */
 	@Override
 	public JobExecuter createJobExecuter(JobManager manager, URL baseUrl)
 			throws IOException {
+		Executer executer;
+		synchronized (idleExecuters) {
+			// The pool can only be started once there is a manager to serve
+			poolManager = requireNonNull(manager);
+			poolBaseUrl = requireNonNull(baseUrl);
+			executer = idleExecuters.poll();
+			if (executer != null) {
+				executer.claimed = true;
+				poolHits++;
+			} else {
+				poolMisses++;
+				if (poolSize < poolMaxIdle)
+					poolSize++;
+			}
+			leastIdle = min(leastIdle, idleExecuters.size());
+			nClaimed++;
+		}
+		if (executer == null) {
+			try {
+				executer = newExecuter(manager, baseUrl);
+			} catch (IOException | RuntimeException e) {
+				synchronized (idleExecuters) {
+					nClaimed--;
+				}
+				throw e;
+			}
+			executer.claimed = true;
+		}
+		fillPool();
+		return executer;
+	}
+
+	private Executer newExecuter(JobManager manager, URL baseUrl)
+			throws IOException {
 		String uuid = UUID.randomUUID().toString();
 		List<String> arguments = new ArrayList<>();
 		arguments.add("--serverUrl");
@@ -109,6 +210,118 @@ public class LocalJobExecuterFactory implements JobExecuterFactory {
 		return new Executer(requireNonNull(manager), arguments, uuid);
 	}
 
+	/**
+	 * Starts executers until there are enough idle ones, as long as the
+	 * processes of the idle executers and of those handed out are within the
+	 * limit on executers. Their processes start, and then wait in the manager
+	 * until the executer is handed out.
+	 */
+	private void fillPool() {
+		List<Executer> started = new ArrayList<>();
+		synchronized (idleExecuters) {
+			while (!closed && poolManager != null
+					&& idleExecuters.size() < poolSize
+					&& idleExecuters.size() + nClaimed < maxExecuters) {
+				try {
+					Executer executer = newExecuter(poolManager, poolBaseUrl);
+					idleExecuters.add(executer);
+					started.add(executer);
+				} catch (IOException e) {
+					log.error("Could not create an executer for the pool", e);
+					break;
+				}
+			}
+		}
+		for (Executer executer : started)
+			executer.startExecuter();
+	}
+
+	/**
+	 * Shrinks the pool by the number of idle executers that have not been
+	 * needed since it was last trimmed, stopping them.
+	 */
+	private void trimPool() {
+		List<Executer> unused = new ArrayList<>();
+		synchronized (idleExecuters) {
+			int surplus = min(leastIdle, poolSize - poolMinIdle);
+			for (int i = 0; i < surplus; i++) {
+				poolSize--;
+				if (idleExecuters.size() > poolSize)
+					unused.add(idleExecuters.pollLast());
+			}
+			leastIdle = idleExecuters.size();
+		}
+		if (!unused.isEmpty())
+			log.debug("Stopping " + unused.size() + " unused idle executers");
+		for (Executer executer : unused)
+			executer.stop();
+	}
+
+	/**
+	 * Deals with an executer that has stopped. One that had been handed out
+	 * makes room for the pool to be topped up. One that had not is not
+	 * replaced until another executer is asked for, in case whatever stopped
+	 * it stops its replacement too.
+	 *
+	 * @return True if the executer had not been handed out
+	 */
+	private boolean executerExited(Executer executer) {
+		synchronized (idleExecuters) {
+			if (!executer.claimed) {
+				idleExecuters.remove(executer);
+				leastIdle = min(leastIdle, idleExecuters.size());
+				return true;
+			}
+			nClaimed--;
+		}
+		fillPool();
+		return false;
+	}
+
+	/**
+	 * Stops the idle executers, and does not start any more. Executers that
+	 * have been handed out are left to finish their jobs.
+	 */
+	@PreDestroy
+	void close() {
+		List<Executer> idle;
+		synchronized (idleExecuters) {
+			closed = true;
+			idle = new ArrayList<>(idleExecuters);
+			idleExecuters.clear();
+		}
+		if (poolTrimmer != null)
+			poolTrimmer.shutdownNow();
+		for (Executer executer : idle)
+			executer.stop();
+	}
+
+	/** @return The number of idle executers ready to be handed out */
+	public int getIdleExecuterCount() {
+		synchronized (idleExecuters) {
+			return idleExecuters.size();
+		}
+	}
+
+	/** @return The number of executers handed out from the pool */
+	public int getPoolHits() {
+		synchronized (idleExecuters) {
+			return poolHits;
+		}
+	}
+
+	/** @return The number of executers that had to be started on demand */
+	public int getPoolMisses() {
+		synchronized (idleExecuters) {
+			return poolMisses;
+		}
+	}
+
+	@Override
+	public int getMaxExecuters() {
+		return maxExecuters;
+	}
+
 	class Executer implements JobExecuter, Runnable {
 		private final JobManager jobManager;
 		private final List<String> arguments;
@@ -118,6 +331,13 @@ public class LocalJobExecuterFactory implements JobExecuterFactory {
 		private File outputLog = createTempFile("exec", ".log");
 		private Process process;
 		private IOException startException;
+		private boolean started;
+		/** Whether the process is to be stopped; guarded by the executer */
+		private boolean stopped;
+		/** When the process was started, in ms */
+		private volatile long startTime;
+		/** Whether the executer has been handed out; guarded by the pool */
+		private boolean claimed;
 
 		/**
 		 * Create a JobExecuter
@@ -144,9 +364,27 @@ public class LocalJobExecuterFactory implements JobExecuterFactory {
 
 		@Override
 		public void startExecuter() {
+			// Executers from the pool have been started already
+			synchronized (this) {
+				if (started)
+					return;
+				started = true;
+			}
 			new Thread(threadGroup, this, "Executer (" + id + ")").start();
 		}
 
+		@Override
+		public long getStartTime() {
+			return startTime;
+		}
+
+		/** Stops the process, or stops it from starting */
+		synchronized void stop() {
+			stopped = true;
+			if (process != null)
+				process.destroy();
+		}
+
 		/**
 		 * Runs the external job
 		 * 
@@ -156,13 +394,15 @@ public class LocalJobExecuterFactory implements JobExecuterFactory {
 		@Override
 		public void run() {
 			try (JobOutputPipe pipe = startSubprocess(constructArguments())) {
-				log.debug("Waiting for process to finish");
-				try {
-					process.waitFor();
-				} catch (InterruptedException e) {
-					// Do nothing; the thread will terminate shortly 
+				if (pipe != null) {
+					log.debug("Waiting for process to finish");
+					try {
+						process.waitFor();
+					} catch (InterruptedException e) {
+						// Do nothing; the thread will terminate shortly
+					}
+					log.debug("Process finished, closing pipe");
 				}
-				log.debug("Process finished, closing pipe");
 			}
 
 			reportResult();
@@ -199,14 +439,18 @@ public class LocalJobExecuterFactory implements JobExecuterFactory {
 			JobOutputPipe pipe = null;
 			synchronized (this) {
 				try {
+					if (stopped)
+						throw new IOException("executer stopped before starting");
 					log.debug("Starting execution process");
+					startTime = System.currentTimeMillis();
 					process = builder.start();
 					log.debug("Starting pipe from process");
 					pipe = new JobOutputPipe(process.getInputStream(),
 							new PrintWriter(outputLog));
 					pipe.start();
 				} catch (IOException e) {
-					log.error("Error running external job", e);
+					if (!stopped)
+						log.error("Error running external job", e);
 					startException = e;
 				}
 				notifyAll();
@@ -227,6 +471,17 @@ public class LocalJobExecuterFactory implements JobExecuterFactory {
 			} catch (IOException e) {
 				log.warn("problem in reporting log", e);
 			}
+			if (executerExited(this)) {
+				boolean wasStopped;
+				synchronized (this) {
+					wasStopped = stopped;
+				}
+				if (wasStopped)
+					log.debug("Idle executer " + id + " stopped");
+				else
+					log.warn("Idle executer " + id + " exited: " + logToAppend);
+				return;
+			}
 			jobManager.setExecutorExited(id, logToAppend.toString());
 		}
 
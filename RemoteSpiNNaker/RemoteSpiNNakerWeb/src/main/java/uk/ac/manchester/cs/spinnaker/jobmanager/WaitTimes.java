@@ -0,0 +1,43 @@
+package uk.ac.manchester.cs.spinnaker.jobmanager;
+
+import static java.lang.Math.max;
+
+/**
+ * Statistics of how long jobs waited before they were run.
+ */
+public class WaitTimes {
+	private int count;
+	private long total;
+	private long longest;
+
+	/**
+	 * @param wait
+	 *            How long (in ms) a job waited
+	 */
+	synchronized void record(long wait) {
+		count++;
+		total += wait;
+		longest = max(longest, wait);
+	}
+
+	/** @return The number of jobs that have waited */
+	public synchronized int getCount() {
+		return count;
+	}
+
+	/** @return The mean time (in ms) that jobs waited */
+	public synchronized long getMean() {
+		return count == 0 ? 0 : total / count;
+	}
+
+	/** @return The longest time (in ms) that a job waited */
+	public synchronized long getLongest() {
+		return longest;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return count + " jobs, mean wait " + getMean() + "ms, longest "
+				+ longest + "ms";
+	}
+}
@@ -13,6 +13,7 @@ import static uk.ac.manchester.cs.spinnaker.jobmanager.JobManager.JOB_PROCESS_MA
 import static uk.ac.manchester.cs.spinnaker.utils.ThreadUtils.sleep;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URL;
 import java.util.Set;
 import java.util.UUID;
@@ -79,7 +80,12 @@ public class XenVMExecuterFactory implements JobExecuterFactory {
 		}
 	}
 
-	private void waitToClaimVM() {
+	@Override
+	public int getMaxExecuters() {
+		return maxNVirtualMachines;
+	}
+
+	private void waitToClaimVM() throws InterruptedIOException {
 		synchronized (lock) {
 			logger.debug(nVirtualMachines + " of " + maxNVirtualMachines
 					+ " in use");
@@ -90,7 +96,8 @@ public class XenVMExecuterFactory implements JobExecuterFactory {
 				try {
 					lock.wait();
 				} catch (InterruptedException e) {
-					// Does Nothing
+					throw new InterruptedIOException(
+							"interrupted while waiting for a VM");
 				}
 			}
 			nVirtualMachines++;
@@ -215,6 +222,8 @@ public class XenVMExecuterFactory implements JobExecuterFactory {
 		private VDI vdi;
 		private VDI extraVdi;
 		private VBD extraDisk;
+		/** When the VM started being set up, in ms */
+		private volatile long startTime;
 
 		Executer(JobManager jobManager, URL baseUrl) throws XmlRpcException,
 				IOException {
@@ -245,9 +254,15 @@ public class XenVMExecuterFactory implements JobExecuterFactory {
 
 		@Override
 		public void startExecuter() {
+			startTime = System.currentTimeMillis();
 			new Thread(threadGroup, this, "Executer (" + uuid + ")").start();
 		}
 
+		@Override
+		public long getStartTime() {
+			return startTime;
+		}
+
 		synchronized XenConnection createVm() throws XmlRpcException, IOException {
 			XenConnection conn = new XenConnection(uuid);
 			clonedVm = conn.getVirtualMachine();
@@ -1,37 +1,321 @@
 package uk.ac.manchester.cs.spinnaker.machinemanager;
 
+import static java.lang.Math.abs;
+import static java.lang.Math.max;
+
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.springframework.beans.factory.annotation.Value;
 
 import uk.ac.manchester.cs.spinnaker.machine.SpinnakerMachine;
 
 /**
- * A manager of SpiNNaker machines
+ * A manager of SpiNNaker machines. Each machine that is made of triads of
+ * boards (12&times;12 chips, 3 boards each), and for which the root host of
+ * each triad is configured, is treated as a grid of triads, and jobs are
+ * given rectangles of it, so that several small jobs can run on one large
+ * machine at once. A rectangle is given to a job as a machine named by the
+ * root host of its triad nearest (0, 0), and without the BMP details, so that
+ * the job neither boots nor resets the boards of other jobs. Other machines
+ * are given out whole.
+ * <p>
+ * A job is given the smallest rectangle that holds the boards it asks for,
+ * on the machine where that wastes the fewest boards and leaves the least
+ * free space (best fit), keeping large free areas for large jobs. Released
+ * rectangles simply become free again, and join up with the free space
+ * around them.
+ * <p>
+ * Requests are normally served whenever they fit, so a large request may wait
+ * for ever while small ones keep taking the boards it needs. With backfill
+ * turned on, the oldest request that does not fit is given a reservation: the
+ * time at which, going by the run times jobs said they need, enough boards
+ * will have been released for it, and where it will go. Later requests may
+ * then only start if they will be done before that time, or do not use the
+ * boards of the reservation.
  */
 public class FixedMachineManagerImpl implements MachineManager {
+	private static final int TRIAD_CHIPS = 12;
+	private static final int BOARDS_PER_TRIAD = 3;
+
+	/**
+	 * The machines, each divided into a grid
+	 */
+	private final List<BoardGrid> grids = new ArrayList<>();
 	/**
-	 * The queue of available machines
+	 * The part of a machine that each machine given out is, by identity (a
+	 * part named after its root host is equal to any other part with that
+	 * root)
 	 */
-	private final Set<SpinnakerMachine> machinesAvailable = new HashSet<>();
-	private final Set<SpinnakerMachine> machinesAllocated = new HashSet<>();
+	private final Map<SpinnakerMachine, Region> allocated = new IdentityHashMap<>();
 	private final Object lock = new Object();
+	private final List<MachineStateListener> listeners = new CopyOnWriteArrayList<>();
+	/** The requests that have not yet been given a machine, oldest first */
+	private final List<Request> waiting = new LinkedList<>();
 	private boolean done = false;
 
+	/** Whether to let small jobs run ahead of a waiting large job */
+	@Value("${machines.backfill:false}")
+	private boolean backfill;
+	/** How long (in ms) a job that does not say how long it needs will take */
+	@Value("${machines.defaultRunTimeMs:3600000}")
+	private long defaultRunTime;
+
+	private List<SpinnakerMachine> initialMachines = Collections.emptyList();
+	/** The root host of each triad, in rows from (0, 0), by machine name */
+	private Map<String, List<String>> triadRootHosts = new HashMap<>();
+	private long startTime;
+	private int totalBoards;
+	/** The board-ms used by machines that have been released */
+	private double releasedBoardTime;
+	private long nGranted;
+	private long nBackfilled;
+	private long totalWaitTime;
+
+	public FixedMachineManagerImpl() {
+		// Settings come from the properties
+	}
+
+	/**
+	 * @param backfill
+	 *            Whether to let small jobs run ahead of a waiting large job
+	 * @param defaultRunTime
+	 *            How long (in ms) a job that does not say how long it needs
+	 *            will take
+	 */
+	FixedMachineManagerImpl(boolean backfill, long defaultRunTime) {
+		this.backfill = backfill;
+		this.defaultRunTime = defaultRunTime;
+	}
+
     @Value("${machines}")
 	void setInitialMachines(List<SpinnakerMachine> machines) {
-		machinesAvailable.addAll(machines);
+		initialMachines = machines;
+		setUpGrids();
+	}
+
+	/**
+	 * Sets the root hosts of the triads of the machines that may be split.
+	 *
+	 * @param triadRootHosts
+	 *            For each machine to split, separated by <tt>;</tt>, its name,
+	 *            <tt>=</tt>, then the root host of each of its triads,
+	 *            separated by <tt>,</tt> and in rows from (0, 0), e.g.
+	 *            <tt>big=host0,host1,host2,host3</tt> for a 24&times;24 machine
+	 *            called big
+	 */
+	@Value("${machines.triadRootHosts:}")
+	void setTriadRootHosts(String triadRootHosts) {
+		this.triadRootHosts = new HashMap<>();
+		for (String machine : triadRootHosts.split(";")) {
+			String[] parts = machine.split("=", 2);
+			if (parts.length < 2)
+				continue;
+			List<String> hosts = new ArrayList<>();
+			for (String host : parts[1].split(","))
+				hosts.add(host.trim());
+			this.triadRootHosts.put(parts[0].trim(), hosts);
+		}
+		setUpGrids();
+	}
+
+	private void setUpGrids() {
+		grids.clear();
+		totalBoards = 0;
+		for (SpinnakerMachine machine : initialMachines) {
+			grids.add(new BoardGrid(machine,
+					triadRootHosts.get(machine.getMachineName())));
+			totalBoards += machine.getnBoards();
+		}
+		startTime = now();
+	}
+
+	/** The time now, in ms; can be replaced for testing */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	/** A request for a machine that has not yet been given one */
+	private static class Request {
+		final int nBoards;
+		final double runTime;
+		final long requested;
+		SpinnakerMachine machine;
+
+		Request(int nBoards, double runTime, long requested) {
+			this.nBoards = nBoards;
+			this.runTime = runTime;
+			this.requested = requested;
+		}
+	}
+
+	/** Where and when the oldest waiting request is expected to start */
+	private static class Reservation {
+		final long start;
+		final Region region;
+
+		Reservation(long start, Region region) {
+			this.start = start;
+			this.region = region;
+		}
+
+		/**
+		 * @return True if a job given the region at the time given will not
+		 *         delay the reservation
+		 */
+		boolean allows(Region region, long now, long runTime) {
+			return now + runTime <= start || !region.overlaps(this.region);
+		}
+	}
+
+	/** A machine, divided into cells that may be allocated separately */
+	private static class BoardGrid {
+		final SpinnakerMachine machine;
+		final int columns;
+		final int rows;
+		final int boardsPerCell;
+		/** The root host of each cell, in rows, if the machine is split */
+		final List<String> rootHosts;
+		final boolean[][] used;
+		int nFree;
+
+		/**
+		 * @param rootHosts
+		 *            The root host of each triad, or <tt>null</tt> if not known,
+		 *            in which case the machine is not split
+		 */
+		BoardGrid(SpinnakerMachine machine, List<String> rootHosts) {
+			this.machine = machine;
+			this.rootHosts = rootHosts;
+			int width = machine.getWidth() / TRIAD_CHIPS;
+			int height = machine.getHeight() / TRIAD_CHIPS;
+			if (width > 0 && height > 0
+					&& machine.getWidth() % TRIAD_CHIPS == 0
+					&& machine.getHeight() % TRIAD_CHIPS == 0
+					&& width * height * BOARDS_PER_TRIAD == machine.getnBoards()
+					&& rootHosts != null
+					&& rootHosts.size() == width * height) {
+				columns = width;
+				rows = height;
+				boardsPerCell = BOARDS_PER_TRIAD;
+			} else {
+				columns = 1;
+				rows = 1;
+				boardsPerCell = machine.getnBoards();
+			}
+			used = new boolean[columns][rows];
+			nFree = columns * rows;
+		}
+
+		/**
+		 * Finds the smallest free rectangle that holds the given number of
+		 * boards; of those of the same size, the squarest is chosen.
+		 *
+		 * @return The rectangle, or <tt>null</tt> if none is free
+		 */
+		Region find(int nBoards) {
+			int nCells = (nBoards + boardsPerCell - 1) / boardsPerCell;
+			if (nCells > nFree)
+				return null;
+			Region best = null;
+			for (int width = 1; width <= columns; width++) {
+				int height = max(1, (nCells + width - 1) / width);
+				if (height > rows)
+					continue;
+				if (best != null && !isBetter(width, height, best))
+					continue;
+				Region region = findFree(width, height);
+				if (region != null)
+					best = region;
+			}
+			return best;
+		}
+
+		private boolean isBetter(int width, int height, Region than) {
+			int area = width * height;
+			int thanArea = than.width * than.height;
+			if (area != thanArea)
+				return area < thanArea;
+			return abs(width - height) < abs(than.width - than.height);
+		}
+
+		private Region findFree(int width, int height) {
+			for (int y = 0; y + height <= rows; y++)
+				for (int x = 0; x + width <= columns; x++)
+					if (isFree(x, y, width, height))
+						return new Region(this, x, y, width, height);
+			return null;
+		}
+
+		private boolean isFree(int x, int y, int width, int height) {
+			for (int i = x; i < x + width; i++)
+				for (int j = y; j < y + height; j++)
+					if (used[i][j])
+						return false;
+			return true;
+		}
+
+		void mark(Region region, boolean inUse) {
+			for (int i = region.x; i < region.x + region.width; i++)
+				for (int j = region.y; j < region.y + region.height; j++)
+					used[i][j] = inUse;
+			nFree += (inUse ? -1 : 1) * region.width * region.height;
+		}
+	}
+
+	/** A rectangle of cells of a machine */
+	private static class Region {
+		final BoardGrid grid;
+		final int x;
+		final int y;
+		final int width;
+		final int height;
+		long allocatedAt;
+		long estimatedEnd;
+
+		Region(BoardGrid grid, int x, int y, int width, int height) {
+			this.grid = grid;
+			this.x = x;
+			this.y = y;
+			this.width = width;
+			this.height = height;
+		}
+
+		int getBoards() {
+			return width * height * grid.boardsPerCell;
+		}
+
+		boolean overlaps(Region other) {
+			return other != null && grid == other.grid
+					&& x < other.x + other.width && other.x < x + width
+					&& y < other.y + other.height && other.y < y + height;
+		}
+
+		/** @return The machine to give to the job */
+		SpinnakerMachine toMachine() {
+			SpinnakerMachine whole = grid.machine;
+			if (width == grid.columns && height == grid.rows)
+				return whole;
+			return new SpinnakerMachine(grid.rootHosts.get(y * grid.columns + x),
+					whole.getVersion(), width * TRIAD_CHIPS, height
+							* TRIAD_CHIPS, getBoards(), null);
+		}
 	}
 
 	@Override
 	public List<SpinnakerMachine> getMachines() {
 		List<SpinnakerMachine> machines = new ArrayList<>();
 		synchronized (lock) {
-			machines.addAll(machinesAvailable);
-			machines.addAll(machinesAllocated);
+			for (BoardGrid grid : grids)
+				machines.add(grid.machine);
 		}
 		return machines;
 	}
@@ -46,46 +330,178 @@ public class FixedMachineManagerImpl implements MachineManager {
 	 */
 	@Override
 	public SpinnakerMachine getNextAvailableMachine(int nBoards) {
-		try {
-			synchronized (lock) {
-				SpinnakerMachine machine;
-				while (!done) {
-					machine = getLargeEnoughMachine(nBoards);
-					if (machine != null) {
-						// Move the machine from available to allocated
-						machinesAvailable.remove(machine);
-						machinesAllocated.add(machine);
-						return machine;
-					}
-					// If no machine was found, wait for something to change
+		return getNextAvailableMachine(nBoards, -1);
+	}
+
+	@Override
+	public SpinnakerMachine getNextAvailableMachine(int nBoards,
+			double runTime) {
+		SpinnakerMachine machine = null;
+		synchronized (lock) {
+			Request request = new Request(nBoards, runTime, now());
+			waiting.add(request);
+			try {
+				schedule();
+				// If no machine was given, wait for something to change
+				while (!done && request.machine == null)
 					lock.wait();
-				}
+			} catch (InterruptedException e) {
+			} finally {
+				if (request.machine == null && waiting.remove(request))
+					// Those behind might now be able to go
+					schedule();
+			}
+			machine = request.machine;
+		}
+		if (machine != null)
+			fireStateChanged(machine);
+		return machine;
+	}
+
+	/**
+	 * Gives machines to the waiting requests that can have them. Must be
+	 * called with the lock held whenever the machines in use or the requests
+	 * change.
+	 */
+	private void schedule() {
+		if (done)
+			return;
+		long now = now();
+		boolean granted = false;
+		Reservation reservation = null;
+		for (Iterator<Request> iterator = waiting.iterator(); iterator
+				.hasNext();) {
+			Request request = iterator.next();
+			Region region = findBestFit(request.nBoards);
+			boolean backfilled = (reservation != null);
+			if (region == null) {
+				if (backfill && !backfilled)
+					reservation = reserve(request.nBoards);
+				continue;
 			}
-		} catch (InterruptedException e) {
+			if (backfilled
+					&& !reservation.allows(region, now,
+							getRunTime(request.runTime)))
+				continue;
+
+			// Take the region out of the free space
+			iterator.remove();
+			region.grid.mark(region, true);
+			region.allocatedAt = now;
+			region.estimatedEnd = now + getRunTime(request.runTime);
+			request.machine = region.toMachine();
+			allocated.put(request.machine, region);
+			nGranted++;
+			totalWaitTime += now - request.requested;
+			if (backfilled)
+				nBackfilled++;
+			granted = true;
 		}
-		return null;
+		if (granted)
+			lock.notifyAll();
 	}
 
-	private SpinnakerMachine getLargeEnoughMachine(int nBoards) {
-		for (SpinnakerMachine nextMachine : machinesAvailable)
-			if (nextMachine.getnBoards() >= nBoards)
-				return nextMachine;
-		return null;
+	private long getRunTime(double runTime) {
+		if (runTime <= 0)
+			return defaultRunTime;
+		return (long) runTime;
+	}
+
+	/**
+	 * Works out when and where a request that does not fit now is expected to
+	 * go, by releasing the machines in use in the order they are expected to
+	 * finish until it fits.
+	 */
+	private Reservation reserve(int nBoards) {
+		List<Region> inUse = new ArrayList<>(allocated.values());
+		Collections.sort(inUse, new Comparator<Region>() {
+			@Override
+			public int compare(Region a, Region b) {
+				return Long.compare(a.estimatedEnd, b.estimatedEnd);
+			}
+		});
+		List<Region> released = new ArrayList<>();
+		try {
+			for (Region region : inUse) {
+				region.grid.mark(region, false);
+				released.add(region);
+				Region place = findBestFit(nBoards);
+				if (place != null)
+					return new Reservation(region.estimatedEnd, place);
+			}
+		} finally {
+			for (Region region : released)
+				region.grid.mark(region, true);
+		}
+
+		// The request will never fit, so it holds nothing back
+		return new Reservation(Long.MAX_VALUE, null);
+	}
+
+	@Override
+	public void setMachineRunTime(SpinnakerMachine machine, double runTime) {
+		synchronized (lock) {
+			Region region = allocated.get(machine);
+			if (region == null)
+				return;
+			region.estimatedEnd = region.allocatedAt + getRunTime(runTime);
+			schedule();
+		}
+	}
+
+	/** Finds where on all the machines a job fits best */
+	private Region findBestFit(int nBoards) {
+		Region best = null;
+		int bestWaste = 0;
+		for (BoardGrid grid : grids) {
+			Region region = grid.find(nBoards);
+			if (region == null)
+				continue;
+			int waste = region.getBoards() - nBoards;
+			if (best == null
+					|| waste < bestWaste
+					|| (waste == bestWaste && grid.nFree < best.grid.nFree)) {
+				best = region;
+				bestWaste = waste;
+			}
+		}
+		return best;
 	}
 
 	/**
 	 * Releases a machine that was previously in use
-	 * 
+	 *
 	 * @param machine
 	 *            The machine to release
 	 */
 	@Override
 	public void releaseMachine(SpinnakerMachine machine) {
 		synchronized (lock) {
-			machinesAllocated.remove(machine);
-			machinesAvailable.add(machine);
+			Region region = allocated.remove(machine);
+			if (region == null)
+				return;
+			region.grid.mark(region, false);
+			releasedBoardTime += (double) region.getBoards()
+					* (now() - region.allocatedAt);
+			schedule();
 			lock.notifyAll();
 		}
+		fireStateChanged(machine);
+	}
+
+	@Override
+	public void addStateListener(MachineStateListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeStateListener(MachineStateListener listener) {
+		listeners.remove(listener);
+	}
+
+	private void fireStateChanged(SpinnakerMachine machine) {
+		for (MachineStateListener listener : listeners)
+			listener.machineStateChanged(machine);
 	}
 
 	/**
@@ -99,10 +515,56 @@ public class FixedMachineManagerImpl implements MachineManager {
 		}
 	}
 
+	/**
+	 * @return The share of the board time since the machines were set up
+	 *         that the boards have been in use, between 0 and 1
+	 */
+	public double getUtilisation() {
+		synchronized (lock) {
+			long now = now();
+			double used = releasedBoardTime;
+			for (Region region : allocated.values())
+				used += (double) region.getBoards() * (now - region.allocatedAt);
+			double available = (double) totalBoards * (now - startTime);
+			if (available <= 0)
+				return 0;
+			return used / available;
+		}
+	}
+
+	/** @return The number of requests that are waiting for a machine */
+	public int getWaitingCount() {
+		synchronized (lock) {
+			return waiting.size();
+		}
+	}
+
+	/**
+	 * @return The number of requests that were given a machine while an
+	 *         older request was waiting
+	 */
+	public long getBackfilledCount() {
+		synchronized (lock) {
+			return nBackfilled;
+		}
+	}
+
+	/**
+	 * @return The mean time (in ms) that requests given a machine waited for
+	 *         it
+	 */
+	public double getMeanWaitTime() {
+		synchronized (lock) {
+			if (nGranted == 0)
+				return 0;
+			return totalWaitTime / (double) nGranted;
+		}
+	}
+
 	@Override
 	public boolean isMachineAvailable(SpinnakerMachine machine) {
 		synchronized (lock) {
-			return !machinesAvailable.contains(machine);
+			return allocated.containsKey(machine);
 		}
 	}
 
@@ -110,13 +572,13 @@ public class FixedMachineManagerImpl implements MachineManager {
 	public boolean waitForMachineStateChange(SpinnakerMachine machine,
 			int waitTime) {
 		synchronized (lock) {
-			boolean isAvailable = machinesAvailable.contains(machine);
+			boolean isAllocated = allocated.containsKey(machine);
 			try {
 				lock.wait(waitTime);
 			} catch (InterruptedException e) {
 				// Does Nothing
 			}
-			return machinesAvailable.contains(machine) != isAvailable;
+			return allocated.containsKey(machine) != isAllocated;
 		}
 	}
 }
@@ -0,0 +1,175 @@
+package uk.ac.manchester.cs.spinnaker.machinemanager;
+
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Works out when each spalloc job must next be kept alive. A job that is not
+ * kept alive within its keep-alive time (as given in its state) is destroyed
+ * by the server; a keep-alive is sent once a set fraction of that time has
+ * passed since the last one was sent, so there is time left over for it to
+ * get there.
+ * <p>
+ * When a keep-alive is answered, what was left of the keep-alive time before
+ * it was answered (the margin) is recorded, showing how close the job came
+ * to expiring.
+ */
+class KeepAliveTracker {
+	/** How long (in ms) to wait before sending again after a failure */
+	private static final long RETRY_DELAY = 1000;
+
+	private final double sendFraction;
+	private final Map<Integer, Entry> jobs = new HashMap<>();
+	private long minimumMargin = Long.MAX_VALUE;
+
+	private static class Entry {
+		long keepAlive;
+		/** When the last keep-alive that was answered was sent */
+		long lastSent;
+		long nextSend;
+		/** When the keep-alive being sent was sent, or 0 if none is */
+		long sending;
+		/** The margin when the last keep-alive was answered, or -1 */
+		long margin = -1;
+	}
+
+	/**
+	 * @param sendFraction
+	 *            How much of the keep-alive time of a job to let pass before
+	 *            sending a keep-alive, between 0 and 1
+	 */
+	KeepAliveTracker(double sendFraction) {
+		this.sendFraction = sendFraction;
+	}
+
+	/** The time now, in ms; can be replaced for testing */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Sets the keep-alive time of a job, starting to track it if it is not
+	 * yet tracked.
+	 *
+	 * @param jobId
+	 *            The id of the job
+	 * @param keepAlive
+	 *            The keep-alive time in seconds, as given by the server; jobs
+	 *            without one do not need keeping alive
+	 */
+	synchronized void setKeepAlive(int jobId, double keepAlive) {
+		if (keepAlive <= 0) {
+			jobs.remove(jobId);
+			return;
+		}
+		Entry entry = jobs.get(jobId);
+		if (entry == null) {
+			entry = new Entry();
+			entry.lastSent = now();
+			jobs.put(jobId, entry);
+		}
+		entry.keepAlive = (long) (keepAlive * 1000);
+		entry.nextSend = entry.lastSent
+				+ (long) (entry.keepAlive * sendFraction);
+	}
+
+	/** Stops tracking a job */
+	synchronized void remove(int jobId) {
+		jobs.remove(jobId);
+	}
+
+	/**
+	 * Gets the jobs that need keeping alive now, noting that a keep-alive is
+	 * being sent for each.
+	 *
+	 * @return The ids of the jobs
+	 */
+	synchronized List<Integer> takeDueJobs() {
+		long now = now();
+		List<Integer> due = new ArrayList<>();
+		for (Map.Entry<Integer, Entry> job : jobs.entrySet()) {
+			Entry entry = job.getValue();
+			if (entry.sending == 0 && entry.nextSend <= now) {
+				entry.sending = now;
+				due.add(job.getKey());
+			}
+		}
+		return due;
+	}
+
+	/**
+	 * Notes that a keep-alive has been answered.
+	 *
+	 * @return The margin (in ms) that the job had left, or -1 if the job is
+	 *         not tracked
+	 */
+	synchronized long answered(int jobId) {
+		Entry entry = jobs.get(jobId);
+		if (entry == null || entry.sending == 0)
+			return -1;
+		long margin = entry.lastSent + entry.keepAlive - now();
+		entry.lastSent = entry.sending;
+		entry.nextSend = entry.lastSent
+				+ (long) (entry.keepAlive * sendFraction);
+		entry.sending = 0;
+		entry.margin = max(0, margin);
+		minimumMargin = min(minimumMargin, margin);
+		return margin;
+	}
+
+	/** Notes that a keep-alive could not be sent; it will be tried again */
+	synchronized void failed(int jobId) {
+		Entry entry = jobs.get(jobId);
+		if (entry == null)
+			return;
+		entry.sending = 0;
+		entry.nextSend = now() + RETRY_DELAY;
+	}
+
+	/**
+	 * @return How long (in ms) until a job next needs keeping alive, or -1 if
+	 *         none does
+	 */
+	synchronized long getDelay() {
+		long next = Long.MAX_VALUE;
+		for (Entry entry : jobs.values())
+			if (entry.sending == 0)
+				next = min(next, entry.nextSend);
+		if (next == Long.MAX_VALUE)
+			return -1;
+		return max(0, next - now());
+	}
+
+	/** @return The keep-alive time (in ms) of a job, or 0 if not tracked */
+	synchronized long getKeepAlive(int jobId) {
+		Entry entry = jobs.get(jobId);
+		return (entry == null) ? 0 : entry.keepAlive;
+	}
+
+	/**
+	 * @return The margin (in ms) each job had left when its last keep-alive
+	 *         was answered, by job id; jobs with no keep-alive answered yet
+	 *         are left out
+	 */
+	synchronized Map<Integer, Long> getMargins() {
+		Map<Integer, Long> margins = new HashMap<>();
+		for (Map.Entry<Integer, Entry> job : jobs.entrySet())
+			if (job.getValue().margin >= 0)
+				margins.put(job.getKey(), job.getValue().margin);
+		return margins;
+	}
+
+	/**
+	 * @return The smallest margin (in ms) that any job had left when a
+	 *         keep-alive was answered (negative if one was too late), or
+	 *         {@link Long#MAX_VALUE} if none has been answered
+	 */
+	synchronized long getMinimumMargin() {
+		return minimumMargin;
+	}
+}
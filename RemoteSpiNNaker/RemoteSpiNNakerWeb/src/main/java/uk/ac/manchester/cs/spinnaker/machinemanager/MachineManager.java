@@ -9,9 +9,48 @@ public interface MachineManager extends AutoCloseable {
 
 	SpinnakerMachine getNextAvailableMachine(int nBoards);
 
+	/**
+	 * Gets the next machine available, waiting if none is available.
+	 *
+	 * @param nBoards
+	 *            The number of boards to request
+	 * @param runTime
+	 *            How long (in ms) the machine is expected to be used for, or
+	 *            a negative number if this is not known
+	 * @return The machine, or <tt>null</tt> if the manager is closed first
+	 */
+	SpinnakerMachine getNextAvailableMachine(int nBoards, double runTime);
+
+	/**
+	 * Updates how long a machine is expected to be used for.
+	 *
+	 * @param machine
+	 *            The machine, as given out by this manager
+	 * @param runTime
+	 *            How long (in ms) from when it was given out the machine is
+	 *            now expected to be used for
+	 */
+	void setMachineRunTime(SpinnakerMachine machine, double runTime);
+
 	boolean isMachineAvailable(SpinnakerMachine machine);
 
 	boolean waitForMachineStateChange(SpinnakerMachine machine, int waitTime);
 
 	void releaseMachine(SpinnakerMachine machine);
+
+	/**
+	 * Asks to be told whenever a machine changes state.
+	 *
+	 * @param listener
+	 *            The listener to tell
+	 */
+	void addStateListener(MachineStateListener listener);
+
+	/**
+	 * Stops telling a listener about changes of machine state.
+	 *
+	 * @param listener
+	 *            The listener to stop telling
+	 */
+	void removeStateListener(MachineStateListener listener);
 }
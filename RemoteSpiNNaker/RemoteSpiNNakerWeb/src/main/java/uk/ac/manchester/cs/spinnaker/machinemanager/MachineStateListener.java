@@ -0,0 +1,18 @@
+package uk.ac.manchester.cs.spinnaker.machinemanager;
+
+import uk.ac.manchester.cs.spinnaker.machine.SpinnakerMachine;
+
+/**
+ * Something that is told when a machine of a {@link MachineManager} changes
+ * state (e.g. when it is allocated, released or lost).
+ */
+public interface MachineStateListener {
+	/**
+	 * Indicates that the state of a machine has changed. This is called by
+	 * the thread that made the change, so must not block.
+	 *
+	 * @param machine
+	 *            The machine whose state has changed
+	 */
+	void machineStateChanged(SpinnakerMachine machine);
+}
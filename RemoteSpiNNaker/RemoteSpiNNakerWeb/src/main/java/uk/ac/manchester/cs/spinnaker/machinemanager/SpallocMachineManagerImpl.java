@@ -2,29 +2,52 @@ package uk.ac.manchester.cs.spinnaker.machinemanager;
 
 import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
 import static com.fasterxml.jackson.databind.PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.nio.ByteBuffer.allocateDirect;
+import static java.nio.channels.SelectionKey.OP_READ;
+import static java.nio.channels.SelectionKey.OP_WRITE;
 import static java.util.Arrays.asList;
+import static java.util.Arrays.copyOf;
+import static java.util.Collections.unmodifiableList;
+import static java.util.concurrent.Executors.newCachedThreadPool;
 import static java.util.concurrent.Executors.newScheduledThreadPool;
-import static java.util.concurrent.TimeUnit.SECONDS;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.apache.commons.io.IOUtils.closeQuietly;
 import static org.slf4j.LoggerFactory.getLogger;
 import static uk.ac.manchester.cs.spinnaker.machinemanager.responses.JobState.DESTROYED;
 import static uk.ac.manchester.cs.spinnaker.machinemanager.responses.JobState.READY;
 import static uk.ac.manchester.cs.spinnaker.utils.ThreadUtils.sleep;
 
-import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.ThreadFactory;
 
 import javax.annotation.PostConstruct;
@@ -42,10 +65,13 @@ import uk.ac.manchester.cs.spinnaker.machinemanager.commands.JobKeepAliveCommand
 import uk.ac.manchester.cs.spinnaker.machinemanager.commands.ListMachinesCommand;
 import uk.ac.manchester.cs.spinnaker.machinemanager.commands.NoNotifyJobCommand;
 import uk.ac.manchester.cs.spinnaker.machinemanager.commands.NotifyJobCommand;
+import uk.ac.manchester.cs.spinnaker.machinemanager.commands.NotifyMachineCommand;
+import uk.ac.manchester.cs.spinnaker.machinemanager.responses.ExceptionResponse;
 import uk.ac.manchester.cs.spinnaker.machinemanager.responses.JobMachineInfo;
 import uk.ac.manchester.cs.spinnaker.machinemanager.responses.JobState;
 import uk.ac.manchester.cs.spinnaker.machinemanager.responses.JobsChangedResponse;
 import uk.ac.manchester.cs.spinnaker.machinemanager.responses.Machine;
+import uk.ac.manchester.cs.spinnaker.machinemanager.responses.MachinesChangedResponse;
 import uk.ac.manchester.cs.spinnaker.machinemanager.responses.Response;
 import uk.ac.manchester.cs.spinnaker.machinemanager.responses.ReturnResponse;
 import uk.ac.manchester.cs.spinnaker.rest.utils.PropertyBasedDeserialiser;
@@ -57,6 +83,13 @@ import com.fasterxml.jackson.databind.module.SimpleModule;
 public class SpallocMachineManagerImpl implements MachineManager, Runnable {
 	private static final String MACHINE_VERSION = "5";
 	private static final String DEFAULT_TAG = "default";
+	private static final Charset UTF_8 = Charset.forName("UTF-8");
+	private static final int READ_BUFFER_SIZE = 1 << 16;
+	private static final int WRITE_BUFFER_SIZE = 1 << 14;
+	private static final int INITIAL_LINE_LENGTH = 1 << 12;
+	private static final int MAX_LINE_LENGTH = 1 << 24;
+	/** How much of the keep-alive time of a job to let pass before sending */
+	private static final double KEEP_ALIVE_SEND_FRACTION = 0.5;
 
 	public interface MachineNotificationReceiver {
 		/**
@@ -74,14 +107,41 @@ public class SpallocMachineManagerImpl implements MachineManager, Runnable {
 	private int port;
     @Value("${spalloc.user.name}")
 	private String owner;
+    @Value("${spalloc.spares:0}")
+	private int sparesPerSize;
+    @Value("${spalloc.spares.sizes:1}")
+	private int nSpareSizes;
 
 	private ObjectMapper mapper = new ObjectMapper();
-	private Map<Integer, SpinnakerMachine> machinesAllocated = new HashMap<>();
-	private Map<SpinnakerMachine, Integer> jobByMachine = new HashMap<>();
+	private Map<Integer, SpinnakerMachine> machinesAllocated = new ConcurrentHashMap<>();
+	private Map<SpinnakerMachine, Integer> jobByMachine = new ConcurrentHashMap<>();
 	private Map<Integer, JobState> machineState = new HashMap<>();
-	private Map<Integer, MachineNotificationReceiver> callbacks = new HashMap<>();
+	private Map<Integer, MachineNotificationReceiver> callbacks = new ConcurrentHashMap<>();
+	private List<MachineStateListener> listeners = new CopyOnWriteArrayList<>();
 	private Logger logger = getLogger(getClass());
 	private Comms comms = new Comms();
+	private final KeepAliveTracker keepAlives = new KeepAliveTracker(
+			KEEP_ALIVE_SEND_FRACTION);
+	/** The next run of the keep-alives; guarded by {@link #keepAlives} */
+	private ScheduledFuture<?> nextKeepAlive;
+	/**
+	 * The machines, as last listed by the server, or <tt>null</tt> if they
+	 * need listing again; replaced whole, never changed
+	 */
+	private volatile List<SpinnakerMachine> machines;
+	/** Held while listing the machines */
+	private final Object machinesLock = new Object();
+	/** The spare jobs kept ready, or <tt>null</tt> if none are kept */
+	private SparePool spares;
+	/** The machines of the spare jobs that are ready, by job id */
+	private Map<Integer, SpinnakerMachine> spareMachines = new ConcurrentHashMap<>();
+	/**
+	 * Held while a spare is added to the pool or moved from it to the
+	 * allocated machines, so that a spare is always in one or the other
+	 */
+	private final Object sparesLock = new Object();
+	/** Allocates the spares, which can take a while */
+	private ExecutorService spareFiller;
 
 	private volatile boolean done = false;
 	private MachineNotificationReceiver callback = null;
@@ -92,7 +152,9 @@ public class SpallocMachineManagerImpl implements MachineManager, Runnable {
 		ResponseBasedDeserializer() {
 			super(Response.class);
 			register("jobs_changed", JobsChangedResponse.class);
+			register("machines_changed", MachinesChangedResponse.class);
 			register("return", ReturnResponse.class);
+			register("exception", ExceptionResponse.class);
 		}
 	}
 
@@ -104,6 +166,21 @@ public class SpallocMachineManagerImpl implements MachineManager, Runnable {
 		mapper.configure(FAIL_ON_UNKNOWN_PROPERTIES, false);
 	}
 
+	/**
+	 * @param ipAddress
+	 *            The address of the spalloc server
+	 * @param port
+	 *            The port of the spalloc server
+	 * @param owner
+	 *            The owner to give the jobs created
+	 */
+	SpallocMachineManagerImpl(String ipAddress, int port, String owner) {
+		this();
+		this.ipAddress = ipAddress;
+		this.port = port;
+		this.owner = owner;
+	}
+
 	ScheduledExecutorService scheduler;
 
 	@PostConstruct
@@ -116,6 +193,18 @@ public class SpallocMachineManagerImpl implements MachineManager, Runnable {
 			}
 		});
 
+		if (sparesPerSize > 0) {
+			spares = new SparePool(sparesPerSize, nSpareSizes);
+			spareFiller = newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(group, r, "Spalloc Spare Allocator");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
 		new Thread(group, this, "Spalloc Comms Interface").start();
 
 		Thread t = new Thread(group, new Runnable() {
@@ -126,13 +215,6 @@ public class SpallocMachineManagerImpl implements MachineManager, Runnable {
 		}, "Spalloc JobState Update Notification Handler");
 		t.setDaemon(true);
 		t.start();
-
-		scheduler.scheduleAtFixedRate(new Runnable() {
-			@Override
-			public void run() {
-				keepAllJobsAlive();
-			}
-		}, 5, 5, SECONDS);
 	}
 
 	// ------------------------------ COMMS ------------------------------
@@ -146,123 +228,376 @@ public class SpallocMachineManagerImpl implements MachineManager, Runnable {
 		}
 	}
 
-	class Comms {
-		private final BlockingQueue<ReturnResponse> responses = new LinkedBlockingQueue<>();
-		private final BlockingQueue<JobsChangedResponse> notifications = new LinkedBlockingQueue<>();
-		private Socket socket;
-		private BufferedReader reader;
-		private PrintWriter writer;
-		private volatile boolean connected = false;
+	private static final Runnable NOTHING = new Runnable() {
+		@Override
+		public void run() {
+			// Does Nothing
+		}
+	};
+
+	/**
+	 * The response to a request that has been sent, which is set when the
+	 * response arrives.
+	 */
+	private class PendingResponse<T> extends FutureTask<T> {
+		private final Class<T> responseType;
+
+		PendingResponse(Class<T> responseType) {
+			super(NOTHING, null);
+			this.responseType = responseType;
+		}
 
-		private <T> T getNextResponse(Class<T> responseType) throws IOException {
-			ReturnResponse response;
+		void received(ReturnResponse response) {
 			try {
-				response = responses.take();
-			} catch (InterruptedException e) {
-				return null;
+				if (responseType == null)
+					set(null);
+				else
+					set(mapper.readValue(response.getReturnValue(),
+							responseType));
+			} catch (IOException e) {
+				setException(e);
 			}
-			if (responseType == null)
-				return null;
-			return mapper.readValue(response.getReturnValue(), responseType);
 		}
 
-		private synchronized void waitForConnection() {
-			while (!connected) {
+		void failed(Exception exception) {
+			setException(exception);
+		}
+	}
+
+	/**
+	 * The connection to the spalloc server. Requests are written as they are
+	 * made, without waiting for the responses to earlier requests; as the
+	 * server answers requests in the order it gets them, each response is
+	 * matched to the oldest request not yet answered.
+	 * <p>
+	 * All reading and writing is done by one thread, using a non-blocking
+	 * channel and a selector. Requests are queued to be written by that
+	 * thread; responses are split into lines in fixed buffers that are reused
+	 * for the life of the manager, so that reading a response only allocates
+	 * what is made from it.
+	 */
+	class Comms {
+		private final BlockingQueue<Response> notifications = new LinkedBlockingQueue<>();
+		/** The requests sent and not yet answered, oldest first */
+		private final Queue<PendingResponse<?>> pending = new ConcurrentLinkedQueue<>();
+		/**
+		 * Held while queueing a request, so requests are answered in the
+		 * order they are queued; guards {@link #outgoing}
+		 */
+		private final Object writeLock = new Object();
+		/** The requests waiting to be written, each a line of bytes */
+		private final Queue<byte[]> outgoing = new ArrayDeque<>();
+		private final ByteBuffer readBuffer = allocateDirect(READ_BUFFER_SIZE);
+		private final ByteBuffer writeBuffer = allocateDirect(WRITE_BUFFER_SIZE);
+		/** The part of a line read so far */
+		private byte[] line = new byte[INITIAL_LINE_LENGTH];
+		private int lineLength;
+		/** The request being copied to the write buffer, and how far */
+		private byte[] writing;
+		private int writtenLength;
+		private volatile Selector selector;
+		private volatile SocketChannel channel;
+		private SelectionKey key;
+		private volatile boolean connected = false;
+
+		private synchronized void waitForConnection() throws IOException {
+			while (!connected && !done) {
 				logger.debug("Waiting for connection");
 				if (waitfor(this))
-					break;
+					throw new InterruptedIOException(
+							"interrupted waiting for connection");
 			}
+			if (done)
+				throw new IOException("machine manager is closed");
 		}
 
-		private void writeRequest(Command<?> request) throws IOException {
-			logger.trace("Sending message of type " + request.getCommand());
-			writer.println(mapper.writeValueAsString(request));
-			writer.flush();
+		private byte[] encode(Command<?> request) throws IOException {
+			byte[] json = mapper.writeValueAsBytes(request);
+			byte[] message = copyOf(json, json.length + 1);
+			message[json.length] = '\n';
+			return message;
 		}
 
-		private void readResponse() throws IOException {
-			// Note, assumes one response per line
-			String line = reader.readLine();
-			if (line == null) {
-				synchronized (this) {
-					connected = false;
-					notifyAll();
+		/**
+		 * Writes as much as the channel will take.
+		 *
+		 * @return True if there is more to write when the channel is ready
+		 */
+		private boolean flushWrites() throws IOException {
+			while (true) {
+				// Fill the buffer from the queue
+				while (writeBuffer.hasRemaining()) {
+					if (writing == null) {
+						synchronized (writeLock) {
+							writing = outgoing.poll();
+						}
+						writtenLength = 0;
+						if (writing == null)
+							break;
+					}
+					int length = min(writeBuffer.remaining(), writing.length
+							- writtenLength);
+					writeBuffer.put(writing, writtenLength, length);
+					writtenLength += length;
+					if (writtenLength == writing.length)
+						writing = null;
+				}
+
+				writeBuffer.flip();
+				if (!writeBuffer.hasRemaining()) {
+					writeBuffer.clear();
+					return false;
 				}
-				return;
+				channel.write(writeBuffer);
+				boolean blocked = writeBuffer.hasRemaining();
+				writeBuffer.compact();
+				if (blocked)
+					return true;
+			}
+		}
+
+		/** Reads what is available, handling each complete line */
+		private void readResponses() throws IOException {
+			while (true) {
+				readBuffer.clear();
+				int count = channel.read(readBuffer);
+				if (count < 0)
+					throw new EOFException("machine server closed connection");
+				if (count == 0)
+					return;
+				readBuffer.flip();
+				while (readBuffer.hasRemaining()) {
+					int end = indexOf(readBuffer, (byte) '\n');
+					appendToLine((end < 0 ? readBuffer.limit() : end)
+							- readBuffer.position());
+					if (end < 0)
+						break;
+					// Skip the newline
+					readBuffer.get();
+					if (lineLength > 0 && line[lineLength - 1] == '\r')
+						lineLength--;
+					if (lineLength > 0)
+						handleResponse();
+					lineLength = 0;
+				}
+			}
+		}
+
+		private int indexOf(ByteBuffer buffer, byte value) {
+			for (int i = buffer.position(); i < buffer.limit(); i++)
+				if (buffer.get(i) == value)
+					return i;
+			return -1;
+		}
+
+		private void appendToLine(int count) throws IOException {
+			if (lineLength + count > line.length) {
+				if (lineLength + count > MAX_LINE_LENGTH)
+					throw new IOException("response longer than "
+							+ MAX_LINE_LENGTH + " bytes");
+				line = copyOf(line,
+						min(MAX_LINE_LENGTH, max(line.length * 2, lineLength
+								+ count)));
 			}
+			readBuffer.get(line, lineLength, count);
+			lineLength += count;
+		}
 
-			logger.trace("Received response: " + line);
-			Response response = mapper.readValue(line, Response.class);
+		private void handleResponse() throws IOException {
+			if (logger.isTraceEnabled())
+				logger.trace("Received response: "
+						+ new String(line, 0, lineLength, UTF_8));
+			Response response = mapper.readValue(line, 0, lineLength,
+					Response.class);
 			logger.trace("Received response of type " + response);
-			if (response instanceof ReturnResponse)
-				responses.offer((ReturnResponse) response);
-			else if (response instanceof JobsChangedResponse)
-				notifications.offer((JobsChangedResponse) response);
-			else
+			if (response instanceof JobsChangedResponse
+					|| response instanceof MachinesChangedResponse) {
+				notifications.offer(response);
+				return;
+			}
+			if (!(response instanceof ReturnResponse)
+					&& !(response instanceof ExceptionResponse)) {
 				logger.error("Unrecognized response: " + response);
+				return;
+			}
+
+			PendingResponse<?> request = pending.poll();
+			if (request == null)
+				logger.error("Response to no request: " + response);
+			else if (response instanceof ReturnResponse)
+				request.received((ReturnResponse) response);
+			else
+				request.failed(new IOException("machine server error: "
+						+ ((ExceptionResponse) response).getException()));
+		}
+
+		/** Waits for the connection to be ready, then reads and writes */
+		private void serviceConnection() throws IOException {
+			key.interestOps(flushWrites() ? OP_READ | OP_WRITE : OP_READ);
+			selector.select();
+			if (selector.selectedKeys().remove(key) && key.isReadable())
+				readResponses();
 		}
 
 		public void mainLoop() {
-			while (!done) {
-				try {
-					connect();
-				} catch (IOException e) {
-					if (!done)
-						logger.error("Could not connect to machine server", e);
-				}
-				try {
-					while (connected)
-						readResponse();
-				} catch (IOException e) {
-					logger.error("Error receiving", e);
-					if (!done)
-						disconnect();
-				}
-				if (!done) {
-					logger.warn("Disconnected from machine server...");
-					sleep(1000);
+			try {
+				selector = Selector.open();
+			} catch (IOException e) {
+				logger.error("Could not create selector", e);
+				return;
+			}
+			try {
+				while (!done) {
+					try {
+						connect();
+					} catch (IOException e) {
+						if (!done)
+							logger.error("Could not connect to machine server",
+									e);
+					}
+					try {
+						while (connected)
+							serviceConnection();
+					} catch (IOException | CancelledKeyException e) {
+						if (!done)
+							logger.error("Error communicating", e);
+					}
+					disconnect();
+					if (!done) {
+						logger.warn("Disconnected from machine server...");
+						sleep(1000);
+					}
 				}
+			} finally {
+				closeQuietly(selector);
 			}
 		}
 
-		public synchronized void connect() throws IOException {
-			socket = new Socket(ipAddress, port);
-			reader = new BufferedReader(new InputStreamReader(
-					socket.getInputStream()));
-			writer = new PrintWriter(socket.getOutputStream());
+		private void connect() throws IOException {
+			SocketChannel newChannel = SocketChannel
+					.open(new InetSocketAddress(ipAddress, port));
+			newChannel.configureBlocking(false);
+			readBuffer.clear();
+			writeBuffer.clear();
+			writing = null;
+			lineLength = 0;
+			key = newChannel.register(selector, OP_READ);
+			channel = newChannel;
+
+			/*
+			 * Ask to be told when machines change, before anything else is
+			 * sent; as changes may have been missed while disconnected, the
+			 * machines must be listed again
+			 */
+			synchronized (writeLock) {
+				pending.add(new PendingResponse<>(null));
+				outgoing.add(encode(new NotifyMachineCommand()));
+			}
+			machines = null;
 
-			connected = true;
-			// Send an empty JCR over
-			notifications.offer(new JobsChangedResponse());
-			notifyAll();
+			synchronized (this) {
+				connected = true;
+				// Send an empty JCR over
+				notifications.offer(new JobsChangedResponse());
+				notifyAll();
+			}
 		}
 
 		public void disconnect() {
 			connected = false;
-			closeQuietly(writer);
-			closeQuietly(reader);
-			closeQuietly(socket);
+			closeQuietly(channel);
+			Selector s = selector;
+			if (s != null)
+				s.wakeup();
+
+			// Nothing sent will now be answered
+			synchronized (writeLock) {
+				outgoing.clear();
+				IOException failure = new IOException(
+						"disconnected from machine server");
+				PendingResponse<?> request;
+				while ((request = pending.poll()) != null)
+					request.failed(failure);
+			}
+			synchronized (this) {
+				notifyAll();
+			}
 		}
 
-		public <T> T sendRequest(Command<?> request, Class<T> responseType)
-				throws IOException {
-			synchronized (SpallocMachineManagerImpl.this) {
+		/**
+		 * Sends a request without waiting for the response.
+		 *
+		 * @param request
+		 *            The request to send
+		 * @param responseType
+		 *            The type of the value returned, or <tt>null</tt> if the
+		 *            value is not wanted
+		 * @return The response, when it arrives
+		 * @throws IOException
+		 *             If the request cannot be sent
+		 */
+		public <T> Future<T> sendRequestAsync(Command<?> request,
+				Class<T> responseType) throws IOException {
+			logger.trace("Sending message of type " + request.getCommand());
+			byte[] message = encode(request);
+			PendingResponse<T> response = new PendingResponse<>(responseType);
+			while (true) {
 				waitForConnection();
-				writeRequest(request);
-				return getNextResponse(responseType);
+				synchronized (writeLock) {
+					// Check again, as the connection may have been lost
+					if (connected) {
+						pending.add(response);
+						outgoing.add(message);
+						break;
+					}
+				}
 			}
+			selector.wakeup();
+			return response;
 		}
 
-		public void sendRequest(Command<?> request) throws IOException {
-			synchronized (SpallocMachineManagerImpl.this) {
-				waitForConnection();
-				writeRequest(request);
-				getNextResponse(null);
+		/**
+		 * Waits for the response to a request.
+		 *
+		 * @param response
+		 *            The response, as returned by
+		 *            {@link #sendRequestAsync(Command, Class)}
+		 * @return The value returned
+		 * @throws IOException
+		 *             If the request fails, or the wait is interrupted
+		 */
+		public <T> T getResponse(Future<T> response) throws IOException {
+			try {
+				return response.get();
+			} catch (InterruptedException e) {
+				response.cancel(false);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException(
+						"interrupted waiting for response");
+			} catch (ExecutionException e) {
+				if (e.getCause() instanceof IOException)
+					throw (IOException) e.getCause();
+				throw new IOException(e.getCause());
 			}
 		}
 
-		public List<Integer> getJobsChanged() throws InterruptedException {
-			return notifications.take().getJobsChanged();
+		public <T> T sendRequest(Command<?> request, Class<T> responseType)
+				throws IOException {
+			return getResponse(sendRequestAsync(request, responseType));
+		}
+
+		public void sendRequest(Command<?> request) throws IOException {
+			sendRequest(request, null);
+		}
+
+		/**
+		 * Waits for the server to say that something has changed.
+		 *
+		 * @return A {@link JobsChangedResponse} or a
+		 *         {@link MachinesChangedResponse}
+		 */
+		public Response getNextNotification() throws InterruptedException {
+			return notifications.take();
 		}
 	}
 
@@ -278,6 +613,8 @@ public class SpallocMachineManagerImpl implements MachineManager, Runnable {
 			comms.mainLoop();
 		} finally {
 			scheduler.shutdownNow();
+			if (spareFiller != null)
+				spareFiller.shutdownNow();
 		}
 	}
 
@@ -300,19 +637,18 @@ public class SpallocMachineManagerImpl implements MachineManager, Runnable {
 					.sendRequest(new GetJobStateCommand(id), JobState.class);
 		}
 
-		void notify(boolean enable) throws IOException {
+		Future<Void> notify(boolean enable) throws IOException {
 			if (enable)
-				comms.sendRequest(new NotifyJobCommand(id));
-			else
-				comms.sendRequest(new NoNotifyJobCommand(id));
+				return comms.sendRequestAsync(new NotifyJobCommand(id), null);
+			return comms.sendRequestAsync(new NoNotifyJobCommand(id), null);
 		}
 
-		void keepAlive() throws IOException {
-			comms.sendRequest(new JobKeepAliveCommand(id));
+		Future<Void> keepAlive() throws IOException {
+			return comms.sendRequestAsync(new JobKeepAliveCommand(id), null);
 		}
 
-		void destroy() throws IOException {
-			comms.sendRequest(new DestroyJobCommand(id));
+		Future<Void> destroy() throws IOException {
+			return comms.sendRequestAsync(new DestroyJobCommand(id), null);
 		}
 	}
 
@@ -336,16 +672,45 @@ public class SpallocMachineManagerImpl implements MachineManager, Runnable {
 			machineState.notifyAll();
 		}
 
+		if (state.getState() == DESTROYED)
+			keepAlives.remove(job.id);
+		else if (keepAlives.getKeepAlive(job.id) > 0) {
+			// The keep-alive time can be changed
+			keepAlives.setKeepAlive(job.id, state.getKeepAlive());
+			scheduleKeepAlives();
+		}
+
 		if (state.getState() == DESTROYED) {
-			SpinnakerMachine machine = machinesAllocated.remove(job);
+			SpinnakerMachine machine = null;
+			boolean wasSpare;
+			synchronized (sparesLock) {
+				wasSpare = (spares != null) && spares.remove(job.id);
+				if (!wasSpare)
+					machine = machinesAllocated.remove(job.id);
+			}
+			if (wasSpare) {
+				logger.warn("Spare job " + job.id + " was destroyed: "
+						+ state.getReason());
+				spareMachines.remove(job.id);
+				synchronized (machineState) {
+					machineState.remove(job.id);
+				}
+				fillSpares();
+				return;
+			}
 			if (machine == null) {
 				logger.error("Unrecognized job: " + job);
 				return;
 			}
 			jobByMachine.remove(machine);
-			MachineNotificationReceiver callback = callbacks.get(job);
+			MachineNotificationReceiver callback = callbacks.get(job.id);
 			if (callback != null)
 				callback.machineUnallocated(machine);
+			fireStateChanged(machine);
+		} else {
+			SpinnakerMachine machine = machinesAllocated.get(job.id);
+			if (machine != null)
+				fireStateChanged(machine);
 		}
 	}
 
@@ -372,81 +737,248 @@ public class SpallocMachineManagerImpl implements MachineManager, Runnable {
 	private static int MACHINE_WIDTH_FACTOR = 12;
 	private static int MACHINE_HEIGHT_FACTOR = 12;
 
+	/**
+	 * Gets the machines. These are only listed by the server when they are
+	 * not known, or have changed; the list returned must not be changed.
+	 */
 	@Override
 	public List<SpinnakerMachine> getMachines() {
+		List<SpinnakerMachine> known = machines;
+		if (known != null)
+			return known;
 		try {
-			List<SpinnakerMachine> machines = new ArrayList<>();
-			for (Machine machine : listMachines())
-				if (machine.getTags().contains(DEFAULT_TAG))
-					machines.add(new SpinnakerMachine(machine.getName(),
+			return refreshMachines(null);
+		} catch (IOException e) {
+			logger.error("Error getting machines", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Lists the machines again. Machines that have not changed are kept as
+	 * they were.
+	 *
+	 * @param changed
+	 *            The names of the machines that have changed, or
+	 *            <tt>null</tt> to only list the machines if they are not
+	 *            known
+	 * @return The new list of machines
+	 */
+	private List<SpinnakerMachine> refreshMachines(List<String> changed)
+			throws IOException {
+		synchronized (machinesLock) {
+			// Someone else might have just listed them
+			List<SpinnakerMachine> known = machines;
+			if (known != null && (changed == null || changed.isEmpty()))
+				return known;
+
+			Map<String, SpinnakerMachine> old = new HashMap<>();
+			if (known != null)
+				for (SpinnakerMachine machine : known)
+					if (!changed.contains(machine.getMachineName()))
+						old.put(machine.getMachineName(), machine);
+
+			List<SpinnakerMachine> listed = new ArrayList<>();
+			for (Machine machine : listMachines()) {
+				if (!machine.getTags().contains(DEFAULT_TAG))
+					continue;
+				SpinnakerMachine unchanged = old.get(machine.getName());
+				if (unchanged != null)
+					listed.add(unchanged);
+				else
+					listed.add(new SpinnakerMachine(machine.getName(),
 							MACHINE_VERSION, machine.getWidth()
 									* MACHINE_WIDTH_FACTOR, machine.getHeight()
 									* MACHINE_HEIGHT_FACTOR, machine.getWidth()
 									* machine.getHeight(), null));
-			return machines;
-		} catch (IOException e) {
-			logger.error("Error getting machines", e);
-			return null;
+			}
+			known = unmodifiableList(listed);
+			machines = known;
+			return known;
 		}
 	}
 
+	/**
+	 * Waits for the boards of a new job to be ready, keeping the job alive
+	 * and asking to be told when it changes.
+	 *
+	 * @return The machine made of the boards of the job
+	 */
+	private SpinnakerMachine waitForMachine(Job job) throws IOException {
+		logger.debug("Got machine " + job.id + ", requesting notifications");
+		Future<Void> notifying = job.notify(true);
+		JobState state = job.getState();
+		comms.getResponse(notifying);
+		synchronized (machineState) {
+			machineState.put(job.id, state);
+		}
+		logger.debug("Notifications for " + job.id + " are on");
+		keepAlives.setKeepAlive(job.id, state.getKeepAlive());
+		scheduleKeepAlives();
+
+		state = waitForStates(job, READY, DESTROYED);
+		if (state == null)
+			throw new InterruptedIOException("interrupted waiting for job "
+					+ job.id);
+		if (state.getState() == DESTROYED)
+			throw new RuntimeException(state.getReason());
+
+		return getMachineForJob(job);
+	}
+
 	@Override
 	public SpinnakerMachine getNextAvailableMachine(int nBoards) {
+		if (spares != null) {
+			Integer spareId;
+			SpinnakerMachine spare = null;
+			synchronized (sparesLock) {
+				spareId = spares.take(nBoards);
+				if (spareId != null)
+					spare = allocated(spareId, spareMachines.remove(spareId));
+			}
+			// Replace the spare, or start keeping spares of this size
+			fillSpares();
+			if (spare != null) {
+				logger.debug("Using spare job " + spareId + " for " + nBoards
+						+ " boards; spare hit rate is now "
+						+ spares.getHitRate());
+				return spare;
+			}
+		}
+
 		Job job = null;
 		SpinnakerMachine machineAllocated = null;
 
 		while (job == null || machineAllocated == null) {
 			try {
 				job = createJob(nBoards);
-
-				logger.debug("Got machine " + job.id
-						+ ", requesting notifications");
-				job.notify(true);
-				JobState state = job.getState();
-				synchronized (machineState) {
-					machineState.put(job.id, state);
-				}
-				logger.debug("Notifications for " + job.id + " are on");
-
-				state = waitForStates(job, READY, DESTROYED);
-				if (state.getState() == DESTROYED)
-					throw new RuntimeException(state.getReason());
-
-				machineAllocated = getMachineForJob(job);
+				machineAllocated = waitForMachine(job);
+			} catch (InterruptedIOException e) {
+				logger.warn("Interrupted getting machine");
+				return null;
 			} catch (IOException e) {
 				logger.error("Error getting machine - retrying", e);
 			}
 		}
 
-		machinesAllocated.put(job.id, machineAllocated);
-		jobByMachine.put(machineAllocated, job.id);
+		return allocated(job.id, machineAllocated);
+	}
+
+	private SpinnakerMachine allocated(int jobId, SpinnakerMachine machine) {
+		machinesAllocated.put(jobId, machine);
+		jobByMachine.put(machine, jobId);
 		if (callback != null)
-			callbacks.put(job.id, callback);
-		return machineAllocated;
+			callbacks.put(jobId, callback);
+		return machine;
+	}
+
+	/**
+	 * Starts allocating the spares that are needed, and destroys those that
+	 * are no longer wanted.
+	 */
+	private void fillSpares() {
+		for (final int nBoards : spares.takeNeeded())
+			spareFiller.execute(new Runnable() {
+				@Override
+				public void run() {
+					fillSpare(nBoards);
+				}
+			});
+		for (int jobId : spares.takeUnwanted()) {
+			logger.debug("Spare job " + jobId + " is no longer wanted");
+			spareMachines.remove(jobId);
+			destroyJob(jobId);
+		}
+	}
+
+	private void fillSpare(int nBoards) {
+		Job job = null;
+		try {
+			job = createJob(nBoards);
+			SpinnakerMachine machine = waitForMachine(job);
+			synchronized (sparesLock) {
+				// It might have been destroyed since it was ready
+				JobState state;
+				synchronized (machineState) {
+					state = machineState.get(job.id);
+				}
+				if (state == null || state.getState() == DESTROYED)
+					throw new IOException("spare job " + job.id
+							+ " was destroyed before it could be used");
+				// The machine must be there before the spare can be taken
+				spareMachines.put(job.id, machine);
+				spares.filled(nBoards, job.id);
+			}
+			logger.debug("Spare job " + job.id + " of " + nBoards
+					+ " boards is ready");
+		} catch (IOException | RuntimeException e) {
+			logger.error("Error allocating spare of " + nBoards + " boards",
+					e);
+			spares.failed(nBoards);
+			if (job != null)
+				destroyJob(job.id);
+		}
+	}
+
+	@Override
+	public SpinnakerMachine getNextAvailableMachine(int nBoards,
+			double runTime) {
+		// The spalloc server does its own scheduling
+		return getNextAvailableMachine(nBoards);
+	}
+
+	@Override
+	public void setMachineRunTime(SpinnakerMachine machine, double runTime) {
+		// The spalloc server does its own scheduling
 	}
 
 	@Override
 	public void releaseMachine(SpinnakerMachine machine) {
 		Integer jobId = jobByMachine.remove(machine);
 		if (jobId != null) {
-			Job job = new Job(jobId);
-			try {
-				logger.debug("Turning off notification for " + jobId);
-				job.notify(false);
-				logger.debug("Notifications for " + jobId + " are off");
-				machinesAllocated.remove(jobId);
-				synchronized (machineState) {
-					machineState.remove(jobId);
-				}
-				callbacks.remove(jobId);
-				job.destroy();
-				logger.debug("Job " + jobId + " destroyed");
-			} catch (IOException e) {
-				logger.error("Error releasing machine for " + jobId);
+			machinesAllocated.remove(jobId);
+			callbacks.remove(jobId);
+			destroyJob(jobId);
+			fireStateChanged(machine);
+		}
+	}
+
+	/** Stops watching a job and keeping it alive, and destroys it */
+	private void destroyJob(int jobId) {
+		Job job = new Job(jobId);
+		try {
+			logger.debug("Turning off notification for " + jobId);
+			synchronized (machineState) {
+				machineState.remove(jobId);
 			}
+			keepAlives.remove(jobId);
+			// Both are sent before waiting for either
+			Future<Void> notifying = job.notify(false);
+			Future<Void> destroying = job.destroy();
+			comms.getResponse(notifying);
+			logger.debug("Notifications for " + jobId + " are off");
+			comms.getResponse(destroying);
+			logger.debug("Job " + jobId + " destroyed");
+		} catch (IOException e) {
+			logger.error("Error releasing machine for " + jobId);
 		}
 	}
 
+	@Override
+	public void addStateListener(MachineStateListener listener) {
+		listeners.add(listener);
+	}
+
+	@Override
+	public void removeStateListener(MachineStateListener listener) {
+		listeners.remove(listener);
+	}
+
+	private void fireStateChanged(SpinnakerMachine machine) {
+		for (MachineStateListener listener : listeners)
+			listener.machineStateChanged(machine);
+	}
+
 	@Override
 	public boolean isMachineAvailable(SpinnakerMachine machine) {
 		Integer jobId = jobByMachine.get(machine);
@@ -475,33 +1007,132 @@ public class SpallocMachineManagerImpl implements MachineManager, Runnable {
 		}
 	}
 
-	private void keepAllJobsAlive() {
-		List<Integer> jobIds;
-		synchronized (machineState) {
-			jobIds = new ArrayList<>(machineState.keySet());
+	/**
+	 * Arranges for the keep-alives to run when the next job needs one,
+	 * replacing any run already arranged.
+	 */
+	private void scheduleKeepAlives() {
+		synchronized (keepAlives) {
+			if (scheduler == null || done)
+				return;
+			if (nextKeepAlive != null)
+				nextKeepAlive.cancel(false);
+			nextKeepAlive = null;
+			long delay = keepAlives.getDelay();
+			if (delay >= 0)
+				nextKeepAlive = scheduler.schedule(new Runnable() {
+					@Override
+					public void run() {
+						keepJobsAlive();
+						scheduleKeepAlives();
+					}
+				}, delay, MILLISECONDS);
 		}
-		for (int jobId : jobIds)
+	}
+
+	/** Keeps alive the jobs that need it now */
+	private void keepJobsAlive() {
+		// Send them all, then wait for the answers
+		Map<Integer, Future<Void>> responses = new HashMap<>();
+		for (int jobId : keepAlives.takeDueJobs())
 			try {
-				new Job(jobId).keepAlive();
+				responses.put(jobId, new Job(jobId).keepAlive());
 			} catch (IOException e) {
 				logger.error("Error keeping machine " + jobId + " alive");
+				keepAlives.failed(jobId);
 			}
+		for (Map.Entry<Integer, Future<Void>> response : responses.entrySet()) {
+			int jobId = response.getKey();
+			try {
+				comms.getResponse(response.getValue());
+			} catch (IOException e) {
+				logger.error("Error keeping machine " + jobId + " alive");
+				keepAlives.failed(jobId);
+				continue;
+			}
+			long margin = keepAlives.answered(jobId);
+			if (margin < keepAlives.getKeepAlive(jobId) / 4)
+				logger.warn("Job " + jobId + " was kept alive with " + margin
+						+ "ms to spare");
+			else
+				logger.debug("Job " + jobId + " was kept alive with "
+						+ margin + "ms to spare");
+		}
+	}
+
+	/**
+	 * Gets how close each job came to expiring.
+	 *
+	 * @return The time (in ms) that each job had left when its last
+	 *         keep-alive was answered, by spalloc job id
+	 */
+	public Map<Integer, Long> getKeepAliveMargins() {
+		return keepAlives.getMargins();
+	}
+
+	/**
+	 * Gets how close any job has come to expiring.
+	 *
+	 * @return The least time (in ms) that any job had left when a keep-alive
+	 *         was answered (negative if one came too late), or
+	 *         {@link Long#MAX_VALUE} if none has been answered
+	 */
+	public long getMinimumKeepAliveMargin() {
+		return keepAlives.getMinimumMargin();
+	}
+
+	/**
+	 * Gets how often requests for boards are answered by a spare.
+	 *
+	 * @return The fraction of requests that were given a spare, or 0 if no
+	 *         spares are kept
+	 */
+	public double getSpareHitRate() {
+		return (spares == null) ? 0 : spares.getHitRate();
+	}
+
+	/**
+	 * Gets how much keeping the spares has cost.
+	 *
+	 * @return The board-seconds that spares have spent allocated but not in
+	 *         use, or 0 if no spares are kept
+	 */
+	public double getSpareIdleBoardSeconds() {
+		return (spares == null) ? 0 : spares.getIdleBoardSeconds();
 	}
 
 	private void updateStateOfJobs() {
 		try {
-			while (!done)
-				for (int jobId : comms.getJobsChanged())
-					try {
-						updateJobState(new Job(jobId));
-					} catch (IOException e) {
-						logger.error("Error getting job state", e);
-					}
+			while (!done) {
+				Response notification = comms.getNextNotification();
+				if (notification instanceof MachinesChangedResponse)
+					updateMachines(((MachinesChangedResponse) notification)
+							.getMachinesChanged());
+				else
+					for (int jobId : ((JobsChangedResponse) notification)
+							.getJobsChanged())
+						try {
+							updateJobState(new Job(jobId));
+						} catch (IOException e) {
+							logger.error("Error getting job state", e);
+						}
+			}
 		} catch (InterruptedException e) {
 			logger.warn("interrupt of job state updating");
 		}
 	}
 
+	private void updateMachines(List<String> changed) {
+		logger.debug("Machines changed: " + changed);
+		try {
+			refreshMachines(changed);
+		} catch (IOException e) {
+			logger.error("Error listing machines", e);
+			// List them when next asked
+			machines = null;
+		}
+	}
+
 	// --------------------------- DEMO/TEST CODE ---------------------------
 
 	public static class Demo {
@@ -0,0 +1,232 @@
+package uk.ac.manchester.cs.spinnaker.machinemanager;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of spare spalloc jobs, allocated and ready before they are
+ * asked for, so that a request for boards can be answered without waiting
+ * for the boards to be powered on and booted.
+ * <p>
+ * Spares are kept for the board counts that have been asked for most
+ * often. The time that the spares spend waiting is counted in board-seconds,
+ * as that is what keeping them costs.
+ */
+class SparePool {
+	private final int sparesPerSize;
+	private final int nSizes;
+	/** How many times each number of boards has been asked for */
+	private final Map<Integer, Integer> requests = new HashMap<>();
+	/** The spares that are ready, by number of boards, oldest first */
+	private final Map<Integer, Deque<Spare>> ready = new HashMap<>();
+	/** How many spares are being allocated, by number of boards */
+	private final Map<Integer, Integer> filling = new HashMap<>();
+	private long nRequests;
+	private long nHits;
+	/** The board-ms that spares spent waiting before being used or lost */
+	private long idleBoardMs;
+
+	private static class Spare {
+		final int jobId;
+		final long readySince;
+
+		Spare(int jobId, long readySince) {
+			this.jobId = jobId;
+			this.readySince = readySince;
+		}
+	}
+
+	/**
+	 * @param sparesPerSize
+	 *            How many spares to keep for each number of boards
+	 * @param nSizes
+	 *            How many of the most often asked for numbers of boards to
+	 *            keep spares for
+	 */
+	SparePool(int sparesPerSize, int nSizes) {
+		this.sparesPerSize = sparesPerSize;
+		this.nSizes = nSizes;
+	}
+
+	/** The time now, in ms; can be replaced for testing */
+	long now() {
+		return System.currentTimeMillis();
+	}
+
+	/**
+	 * Notes that boards have been asked for, and takes a spare for them if
+	 * there is one.
+	 *
+	 * @param nBoards
+	 *            The number of boards asked for
+	 * @return The id of the job of the spare, or <tt>null</tt> if there is no
+	 *         spare ready
+	 */
+	synchronized Integer take(int nBoards) {
+		Integer count = requests.get(nBoards);
+		requests.put(nBoards, (count == null) ? 1 : count + 1);
+		nRequests++;
+
+		Deque<Spare> spares = ready.get(nBoards);
+		if (spares == null || spares.isEmpty())
+			return null;
+		Spare spare = spares.poll();
+		idleBoardMs += nBoards * (now() - spare.readySince);
+		nHits++;
+		return spare.jobId;
+	}
+
+	/**
+	 * Gets the numbers of boards that spares need to be allocated for,
+	 * noting that each is being allocated.
+	 *
+	 * @return The number of boards of each spare to allocate
+	 */
+	synchronized List<Integer> takeNeeded() {
+		List<Integer> needed = new ArrayList<>();
+		for (int nBoards : getWantedSizes()) {
+			int allocating = getFillingCount(nBoards);
+			int have = getCount(ready.get(nBoards)) + allocating;
+			if (have >= sparesPerSize)
+				continue;
+			for (int i = have; i < sparesPerSize; i++)
+				needed.add(nBoards);
+			filling.put(nBoards, allocating + sparesPerSize - have);
+		}
+		return needed;
+	}
+
+	/**
+	 * Gets the spares that are no longer wanted, as their number of boards is
+	 * no longer asked for often enough, removing them from the pool.
+	 *
+	 * @return The ids of the jobs of the spares
+	 */
+	synchronized List<Integer> takeUnwanted() {
+		List<Integer> wanted = getWantedSizes();
+		List<Integer> unwanted = new ArrayList<>();
+		long now = now();
+		for (Map.Entry<Integer, Deque<Spare>> spares : ready.entrySet()) {
+			if (wanted.contains(spares.getKey()))
+				continue;
+			for (Spare spare : spares.getValue()) {
+				idleBoardMs += spares.getKey() * (now - spare.readySince);
+				unwanted.add(spare.jobId);
+			}
+			spares.getValue().clear();
+		}
+		return unwanted;
+	}
+
+	/** Notes that a spare has been allocated and is ready for use */
+	synchronized void filled(int nBoards, int jobId) {
+		doneFilling(nBoards);
+		Deque<Spare> spares = ready.get(nBoards);
+		if (spares == null) {
+			spares = new ArrayDeque<>();
+			ready.put(nBoards, spares);
+		}
+		spares.add(new Spare(jobId, now()));
+	}
+
+	/** Notes that a spare could not be allocated */
+	synchronized void failed(int nBoards) {
+		doneFilling(nBoards);
+	}
+
+	/**
+	 * Removes a spare that has gone, e.g. because the server destroyed it.
+	 *
+	 * @return True if the job was a spare
+	 */
+	synchronized boolean remove(int jobId) {
+		long now = now();
+		for (Map.Entry<Integer, Deque<Spare>> spares : ready.entrySet())
+			for (Iterator<Spare> i = spares.getValue().iterator(); i
+					.hasNext();) {
+				Spare spare = i.next();
+				if (spare.jobId == jobId) {
+					idleBoardMs += spares.getKey() * (now - spare.readySince);
+					i.remove();
+					return true;
+				}
+			}
+		return false;
+	}
+
+	/** @return The number of spares that are ready */
+	synchronized int getReadyCount() {
+		int count = 0;
+		for (Deque<Spare> spares : ready.values())
+			count += spares.size();
+		return count;
+	}
+
+	/**
+	 * @return The fraction of requests that were given a spare, or 0 if
+	 *         there have been no requests
+	 */
+	synchronized double getHitRate() {
+		if (nRequests == 0)
+			return 0;
+		return (double) nHits / nRequests;
+	}
+
+	/**
+	 * @return The board-seconds that spares have spent waiting to be used,
+	 *         including those still waiting
+	 */
+	synchronized double getIdleBoardSeconds() {
+		long total = idleBoardMs;
+		long now = now();
+		for (Map.Entry<Integer, Deque<Spare>> spares : ready.entrySet())
+			for (Spare spare : spares.getValue())
+				total += spares.getKey() * (now - spare.readySince);
+		return total / 1000.0;
+	}
+
+	/** The numbers of boards asked for most often, most often first */
+	private List<Integer> getWantedSizes() {
+		List<Map.Entry<Integer, Integer>> counts = new ArrayList<>(
+				requests.entrySet());
+		Collections.sort(counts, new Comparator<Map.Entry<Integer, Integer>>() {
+			@Override
+			public int compare(Map.Entry<Integer, Integer> a,
+					Map.Entry<Integer, Integer> b) {
+				// Smaller sizes first when asked for as often
+				int order = b.getValue().compareTo(a.getValue());
+				if (order == 0)
+					order = a.getKey().compareTo(b.getKey());
+				return order;
+			}
+		});
+		List<Integer> sizes = new ArrayList<>();
+		for (int i = 0; i < counts.size() && i < nSizes; i++)
+			sizes.add(counts.get(i).getKey());
+		return sizes;
+	}
+
+	private void doneFilling(int nBoards) {
+		int count = getFillingCount(nBoards);
+		if (count > 1)
+			filling.put(nBoards, count - 1);
+		else
+			filling.remove(nBoards);
+	}
+
+	private int getFillingCount(int nBoards) {
+		Integer count = filling.get(nBoards);
+		return (count == null) ? 0 : count;
+	}
+
+	private static int getCount(Deque<Spare> spares) {
+		return (spares == null) ? 0 : spares.size();
+	}
+}
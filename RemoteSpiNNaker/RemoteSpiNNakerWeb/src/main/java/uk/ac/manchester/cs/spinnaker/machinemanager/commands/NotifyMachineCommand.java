@@ -0,0 +1,7 @@
+package uk.ac.manchester.cs.spinnaker.machinemanager.commands;
+
+public class NotifyMachineCommand extends Command<String> {
+	public NotifyMachineCommand() {
+		super("notify_machine");
+	}
+}
@@ -0,0 +1,13 @@
+package uk.ac.manchester.cs.spinnaker.machinemanager.responses;
+
+public class ExceptionResponse implements Response {
+    private String exception;
+
+    public String getException() {
+        return exception;
+    }
+
+    public void setException(String exception) {
+        this.exception = exception;
+    }
+}
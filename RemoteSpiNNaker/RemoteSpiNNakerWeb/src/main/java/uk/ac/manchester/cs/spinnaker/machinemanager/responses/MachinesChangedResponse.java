@@ -0,0 +1,17 @@
+package uk.ac.manchester.cs.spinnaker.machinemanager.responses;
+
+import static java.util.Collections.emptyList;
+
+import java.util.List;
+
+public class MachinesChangedResponse implements Response {
+    private List<String> machinesChanged = emptyList();
+
+    public List<String> getMachinesChanged() {
+        return machinesChanged;
+    }
+
+    public void setMachinesChanged(List<String> machinesChanged) {
+        this.machinesChanged = machinesChanged;
+    }
+}
@@ -2,15 +2,26 @@ package uk.ac.manchester.cs.spinnaker.model;
 
 public class NMPILog {
     private StringBuilder content;
+    /** Where text was removed from the log, if any was */
+    private int omittedAt;
+    /** How many characters have been removed from the log */
+    private long omittedLength;
 
     public String getContent() {
         if (content == null)
             return null;
-        return content.toString();
+        if (omittedLength == 0)
+            return content.toString();
+        return new StringBuilder(content.length() + 64)
+                .append(content, 0, omittedAt)
+                .append("\n\n[... ").append(omittedLength)
+                .append(" characters omitted ...]\n\n")
+                .append(content, omittedAt, content.length()).toString();
     }
 
     public void setContent(String content) {
         this.content = new StringBuilder(content);
+        omittedLength = 0;
     }
 
     public void appendContent(String content) {
@@ -19,4 +30,28 @@ public class NMPILog {
         else
             this.content.append(content);
     }
+
+    /**
+     * Appends to the log, removing text from the middle of the log if needed
+     * so that no more than the first <tt>headLength</tt> and the last
+     * <tt>tailLength</tt> characters are kept.
+     *
+     * @param content
+     *            The text to append
+     * @param headLength
+     *            The number of characters to keep from the start of the log
+     * @param tailLength
+     *            The number of characters to keep from the end of the log
+     */
+    public void appendContent(String content, int headLength, int tailLength) {
+        appendContent(content);
+        // Allow the tail to grow to twice its length, so removal is amortised
+        if (this.content.length() <= headLength + 2L * tailLength)
+            return;
+        int start = (omittedLength == 0) ? headLength : omittedAt;
+        int end = this.content.length() - tailLength;
+        this.content.delete(start, end);
+        omittedAt = start;
+        omittedLength += end - start;
+    }
 }
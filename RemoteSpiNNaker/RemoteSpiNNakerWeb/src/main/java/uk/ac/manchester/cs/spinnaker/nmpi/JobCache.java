@@ -0,0 +1,207 @@
+package uk.ac.manchester.cs.spinnaker.nmpi;
+
+import static java.lang.System.currentTimeMillis;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
+import uk.ac.manchester.cs.spinnaker.model.NMPILog;
+
+/**
+ * A bounded cache of the jobs (and their logs) that the queue manager is
+ * dealing with. Jobs that have finished (successfully or not) are evicted
+ * once they have not been used for a while, or when the cache grows too
+ * large; jobs that are still active are never evicted, as their logs only
+ * exist here. The log of a job that is not cached (such as one that gets a
+ * late append after the job has been evicted) has to be loaded again before
+ * it is appended to, as updating it replaces the whole log on the server;
+ * such logs are evicted once they have not been used for a while.
+ */
+public class JobCache {
+	private static final String FINISHED = "finished";
+	private static final String ERROR = "error";
+
+	private static class Entry {
+		Job job;
+		NMPILog log;
+		long lastAccess;
+	}
+
+	/** The most entries to keep, if there are finished jobs to evict */
+	private final int maxEntries;
+	/** How long (in ms) a finished job may go unused before it is evicted */
+	private final long timeToLive;
+	/** The entries, least recently used first */
+	private final Map<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f,
+			true);
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * @param maxEntries
+	 *            The most jobs to keep, if there are finished jobs to evict
+	 * @param timeToLive
+	 *            How long (in ms) a finished job may go unused before it is
+	 *            evicted
+	 */
+	public JobCache(int maxEntries, long timeToLive) {
+		this.maxEntries = maxEntries;
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Gets a job from the cache.
+	 *
+	 * @param id
+	 *            The id of the job
+	 * @return The job, or <tt>null</tt> if it is not cached
+	 */
+	public Job getJob(int id) {
+		synchronized (entries) {
+			Entry entry = entries.get(id);
+			if (entry == null || entry.job == null) {
+				misses.incrementAndGet();
+				return null;
+			}
+			hits.incrementAndGet();
+			entry.lastAccess = currentTimeMillis();
+			return entry.job;
+		}
+	}
+
+	/**
+	 * Adds a job to the cache, replacing any job with the same id.
+	 *
+	 * @param job
+	 *            The job to add
+	 */
+	public void putJob(Job job) {
+		synchronized (entries) {
+			getEntry(job.getId()).job = job;
+			evict();
+		}
+	}
+
+	/**
+	 * Gets the log of a job. A job that is cached but has no log yet is given
+	 * an empty one.
+	 *
+	 * @param id
+	 *            The id of the job
+	 * @return The log of the job, or <tt>null</tt> if neither the job nor its
+	 *         log is cached, as the log may have been evicted
+	 */
+	public NMPILog getLog(int id) {
+		synchronized (entries) {
+			Entry entry = entries.get(id);
+			if (entry == null)
+				return null;
+			entry.lastAccess = currentTimeMillis();
+			if (entry.log == null) {
+				entry.log = new NMPILog();
+				evict();
+			}
+			return entry.log;
+		}
+	}
+
+	/**
+	 * Adds the log of a job that has been loaded from the server, unless a
+	 * log of the job has been added in the meantime.
+	 *
+	 * @param id
+	 *            The id of the job
+	 * @param log
+	 *            The log that was loaded
+	 * @return The log of the job that is now cached
+	 */
+	public NMPILog putLog(int id, NMPILog log) {
+		synchronized (entries) {
+			Entry entry = getEntry(id);
+			if (entry.log == null) {
+				entry.log = log;
+				evict();
+			}
+			return entry.log;
+		}
+	}
+
+	/**
+	 * Determines if a job has a log.
+	 *
+	 * @param id
+	 *            The id of the job
+	 * @return True if there is a log for the job
+	 */
+	public boolean hasLog(int id) {
+		synchronized (entries) {
+			Entry entry = entries.get(id);
+			return entry != null && entry.log != null;
+		}
+	}
+
+	private Entry getEntry(int id) {
+		Entry entry = entries.get(id);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(id, entry);
+		}
+		entry.lastAccess = currentTimeMillis();
+		return entry;
+	}
+
+	/**
+	 * Removes finished jobs and logs without jobs that have expired, and then
+	 * the least recently used finished jobs until the cache is within its
+	 * size bound. You need to hold the lock on {@link #entries} when running
+	 * this method.
+	 */
+	private void evict() {
+		long expiry = currentTimeMillis() - timeToLive;
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			boolean expired = entry.lastAccess < expiry;
+			if (!expired && entries.size() <= maxEntries)
+				// Everything from here on was used more recently
+				break;
+			if (isFinished(entry.job) || (expired && entry.job == null)) {
+				iterator.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+
+	private static boolean isFinished(Job job) {
+		if (job == null)
+			return false;
+		String status = job.getStatus();
+		return FINISHED.equals(status) || ERROR.equals(status);
+	}
+
+	/** @return The number of jobs in the cache */
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	/** @return The number of lookups that found their job in the cache */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/** @return The number of lookups that had to go to the server */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/** @return The number of finished jobs and logs evicted */
+	public long getEvictions() {
+		return evictions.get();
+	}
+}
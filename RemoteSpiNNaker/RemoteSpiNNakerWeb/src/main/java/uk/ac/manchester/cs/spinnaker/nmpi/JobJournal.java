@@ -0,0 +1,251 @@
+package uk.ac.manchester.cs.spinnaker.nmpi;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.APPEND;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+
+/**
+ * An append-only journal of the state transitions of jobs, kept so that jobs
+ * that were in progress when the server stopped can be dealt with when it
+ * starts again. Records are buffered and written (and synced to disk) in
+ * batches by {@link #sync()}; the journal is rewritten to hold only the jobs
+ * that are still in progress once it has grown large enough.
+ */
+public class JobJournal implements AutoCloseable {
+	/** The states of a job that are recorded */
+	public enum State {
+		/** The job has been fetched from the queue */
+		RECEIVED,
+		/** The job has been marked as queued on the server */
+		QUEUED,
+		/** The job has been given to an executer */
+		RUNNING,
+		/** A machine has been allocated to the job */
+		MACHINE_ALLOCATED,
+		/** The job has finished, successfully or not */
+		FINISHED
+	}
+
+	private static final Charset ASCII = Charset.forName("US-ASCII");
+
+	private final File file;
+	/** The number of records beyond which the journal is compacted */
+	private final int compactionThreshold;
+	/** The latest state of each job that has not finished */
+	private final Map<Integer, State> live = new HashMap<>();
+	/** Records not yet written to the file */
+	private StringBuilder buffer = new StringBuilder();
+	/** The number of records in the file (or waiting to be) */
+	private int records;
+	/** Held while writing to the file */
+	private final Object ioLock = new Object();
+	private FileChannel channel;
+	private Logger logger = getLogger(getClass());
+
+	/**
+	 * @param file
+	 *            The file holding the journal
+	 * @param compactionThreshold
+	 *            The number of records beyond which the journal is rewritten
+	 *            to hold only the jobs that are in progress
+	 */
+	public JobJournal(File file, int compactionThreshold) {
+		this.file = file;
+		this.compactionThreshold = compactionThreshold;
+	}
+
+	/**
+	 * Reads the journal in a single pass, and opens it for appending. Any
+	 * damaged records (such as one cut short by a crash) are ignored; a record
+	 * cut short at the end is ended, so that the next record is not joined
+	 * on to it.
+	 *
+	 * @return The latest state of each job that had not finished, in the
+	 *         order in which the jobs were first seen
+	 * @throws IOException
+	 *             If the journal cannot be read or opened
+	 */
+	public Map<Integer, State> replay() throws IOException {
+		Map<Integer, State> unfinished = new LinkedHashMap<>();
+		int count = 0;
+		if (file.exists())
+			try (BufferedReader reader = new BufferedReader(
+					new InputStreamReader(new FileInputStream(file), ASCII))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					count++;
+					String[] parts = line.split(" ");
+					try {
+						int id = Integer.parseInt(parts[0]);
+						State state = State.valueOf(parts[1]);
+						if (state == State.FINISHED)
+							unfinished.remove(id);
+						else
+							unfinished.put(id, state);
+					} catch (IllegalArgumentException
+							| ArrayIndexOutOfBoundsException e) {
+						logger.warn("Ignoring damaged journal record: " + line);
+					}
+				}
+			}
+
+		synchronized (ioLock) {
+			synchronized (this) {
+				live.clear();
+				live.putAll(unfinished);
+				records = count;
+			}
+			boolean torn = !endsWithNewline();
+			channel = FileChannel.open(file.toPath(), CREATE, WRITE, APPEND);
+			if (torn) {
+				ByteBuffer newline = ASCII.encode("\n");
+				while (newline.hasRemaining())
+					channel.write(newline);
+				channel.force(false);
+			}
+		}
+		logger.info("Journal " + file + " has " + unfinished.size()
+				+ " unfinished jobs");
+		return unfinished;
+	}
+
+	/** @return False if the journal ends part way through a record */
+	private boolean endsWithNewline() throws IOException {
+		if (!file.exists())
+			return true;
+		try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+			if (in.length() == 0)
+				return true;
+			in.seek(in.length() - 1);
+			return in.read() == '\n';
+		}
+	}
+
+	/**
+	 * Records a new state of a job. It is not on disk until the next
+	 * {@link #sync()}.
+	 *
+	 * @param id
+	 *            The id of the job
+	 * @param state
+	 *            The state that the job is now in
+	 */
+	public synchronized void record(int id, State state) {
+		if (state == State.FINISHED) {
+			if (live.remove(id) == null)
+				return;
+		} else
+			live.put(id, state);
+		buffer.append(id).append(' ').append(state.name()).append('\n');
+		records++;
+	}
+
+	/**
+	 * Writes any buffered records to disk, compacting the journal if it has
+	 * grown large enough.
+	 *
+	 * @throws IOException
+	 *             If the journal cannot be written
+	 */
+	public void sync() throws IOException {
+		synchronized (ioLock) {
+			if (channel == null)
+				return;
+			if (needsCompaction()) {
+				compact();
+				return;
+			}
+
+			String toWrite;
+			synchronized (this) {
+				if (buffer.length() == 0)
+					return;
+				toWrite = buffer.toString();
+				buffer = new StringBuilder();
+			}
+			ByteBuffer bytes = ASCII.encode(toWrite);
+			while (bytes.hasRemaining())
+				channel.write(bytes);
+			channel.force(false);
+		}
+	}
+
+	private synchronized boolean needsCompaction() {
+		return records > compactionThreshold
+				&& records > 2 * live.size();
+	}
+
+	/**
+	 * Replaces the journal with one holding just the jobs in progress. You
+	 * need to hold {@link #ioLock} when running this method. If the journal
+	 * cannot be replaced, the old one is kept, as are the buffered records.
+	 */
+	private void compact() throws IOException {
+		StringBuilder contents = new StringBuilder();
+		int nBuffered, nRecords, nLive;
+		synchronized (this) {
+			for (Map.Entry<Integer, State> entry : live.entrySet())
+				contents.append(entry.getKey()).append(' ')
+						.append(entry.getValue().name()).append('\n');
+			nBuffered = buffer.length();
+			nRecords = records;
+			nLive = live.size();
+		}
+
+		File newFile = new File(file.getPath() + ".new");
+		try {
+			try (FileChannel out = FileChannel.open(newFile.toPath(), CREATE,
+					WRITE, TRUNCATE_EXISTING)) {
+				ByteBuffer bytes = ASCII.encode(contents.toString());
+				while (bytes.hasRemaining())
+					out.write(bytes);
+				out.force(true);
+			}
+			Files.move(newFile.toPath(), file.toPath(), ATOMIC_MOVE,
+					REPLACE_EXISTING);
+		} catch (IOException e) {
+			newFile.delete();
+			throw e;
+		}
+		FileChannel oldChannel = channel;
+		channel = FileChannel.open(file.toPath(), CREATE, WRITE, APPEND);
+		oldChannel.close();
+
+		synchronized (this) {
+			// The records buffered before are reflected in the live jobs
+			buffer.delete(0, nBuffered);
+			records = nLive + records - nRecords;
+		}
+		logger.debug("Compacted journal " + file);
+	}
+
+	@Override
+	public void close() throws IOException {
+		sync();
+		synchronized (ioLock) {
+			if (channel != null)
+				channel.close();
+			channel = null;
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package uk.ac.manchester.cs.spinnaker.nmpi;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static javax.ws.rs.core.Response.Status.NOT_FOUND;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.slf4j.Logger;
+
+import uk.ac.manchester.cs.spinnaker.model.NMPILog;
+import uk.ac.manchester.cs.spinnaker.rest.NMPIQueue;
+
+/**
+ * Ships job logs to the NMPI server. Appends to the log of a job are gathered
+ * over a window of time (or until enough text has been gathered) and then
+ * sent in a single update. As the server only accepts the whole log, the log
+ * that is kept (and sent) is limited to its start and its end.
+ */
+class LogShipper {
+	private final NMPIQueue queue;
+	private final JobCache jobCache;
+	private final ScheduledExecutorService scheduler;
+	/** How long (in ms) to gather appends before sending them */
+	private final long window;
+	/** How much text to gather before sending it without further waiting */
+	private final int windowLength;
+	/** The number of characters to keep from the start of each log */
+	private final int headLength;
+	/** The number of characters to keep from the end of each log */
+	private final int tailLength;
+	/** The text that has been appended but not yet sent, by job */
+	private final Map<Integer, StringBuilder> pending = new HashMap<>();
+	private Logger logger = getLogger(getClass());
+
+	/**
+	 * @param queue
+	 *            The queue to send log updates to
+	 * @param jobCache
+	 *            Where the log of each job is kept
+	 * @param scheduler
+	 *            What to send the updates with
+	 * @param window
+	 *            How long (in ms) to gather appends before sending them
+	 * @param windowLength
+	 *            How much text to gather before sending it immediately
+	 * @param headLength
+	 *            The number of characters to keep from the start of each log
+	 * @param tailLength
+	 *            The number of characters to keep from the end of each log
+	 */
+	LogShipper(NMPIQueue queue, JobCache jobCache,
+			ScheduledExecutorService scheduler, long window, int windowLength,
+			int headLength, int tailLength) {
+		this.queue = queue;
+		this.jobCache = jobCache;
+		this.scheduler = scheduler;
+		this.window = window;
+		this.windowLength = windowLength;
+		this.headLength = headLength;
+		this.tailLength = tailLength;
+	}
+
+	/**
+	 * Appends to the log of a job; the server will be updated later.
+	 *
+	 * @param id
+	 *            The id of the job
+	 * @param logToAppend
+	 *            The messages to append
+	 */
+	void append(final int id, String logToAppend) {
+		Runnable send = new Runnable() {
+			@Override
+			public void run() {
+				flush(id);
+			}
+		};
+		synchronized (pending) {
+			StringBuilder text = pending.get(id);
+			if (text == null) {
+				text = new StringBuilder();
+				pending.put(id, text);
+				scheduler.schedule(send, window, MILLISECONDS);
+			}
+			text.append(logToAppend);
+			if (text.length() >= windowLength)
+				scheduler.execute(send);
+		}
+	}
+
+	/**
+	 * Sends anything appended to the logs of all jobs to the server now.
+	 */
+	void flushAll() {
+		List<Integer> ids;
+		synchronized (pending) {
+			ids = new ArrayList<>(pending.keySet());
+		}
+		for (int id : ids)
+			flush(id);
+	}
+
+	/**
+	 * Sends anything appended to the log of a job to the server now.
+	 *
+	 * @param id
+	 *            The id of the job
+	 */
+	void flush(int id) {
+		StringBuilder text;
+		synchronized (pending) {
+			text = pending.remove(id);
+		}
+		if (text == null)
+			return;
+
+		NMPILog log = jobCache.getLog(id);
+		if (log == null) {
+			log = loadLog(id);
+			if (log == null) {
+				requeue(id, text);
+				return;
+			}
+			log = jobCache.putLog(id, log);
+		}
+		// Holding the lock keeps the updates of each log in order
+		synchronized (log) {
+			log.appendContent(text.toString(), headLength, tailLength);
+			try {
+				logger.debug("Job " + id + " log is being updated");
+				queue.updateLog(id, log);
+			} catch (Exception e) {
+				// The text is in the log, so will go with the next update
+				logger.error("Error updating log of job " + id, e);
+			}
+		}
+	}
+
+	/**
+	 * Gets the log of a job that is not cached from the server, so that it is
+	 * appended to rather than replaced.
+	 *
+	 * @return The log, an empty log if the server has none, or <tt>null</tt>
+	 *         if it could not be got
+	 */
+	private NMPILog loadLog(int id) {
+		try {
+			logger.debug("Job " + id + " log is being loaded");
+			NMPILog log = queue.getLog(id);
+			return (log == null) ? new NMPILog() : log;
+		} catch (WebApplicationException e) {
+			if (e.getResponse().getStatus() == NOT_FOUND.getStatusCode())
+				return new NMPILog();
+			logger.error("Error loading log of job " + id, e);
+		} catch (Exception e) {
+			logger.error("Error loading log of job " + id, e);
+		}
+		return null;
+	}
+
+	/** Puts back text that could not be sent, ahead of any appended since */
+	private void requeue(int id, StringBuilder text) {
+		synchronized (pending) {
+			StringBuilder appended = pending.get(id);
+			if (appended == null)
+				append(id, text.toString());
+			else
+				appended.insert(0, text);
+		}
+	}
+}
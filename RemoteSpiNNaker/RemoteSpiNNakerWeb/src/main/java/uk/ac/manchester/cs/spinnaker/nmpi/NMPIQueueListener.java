@@ -9,4 +9,12 @@ import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
  */
 public interface NMPIQueueListener {
     void addJob(Job job) throws IOException;
+
+    /**
+     * Gets how many more jobs the listener is able to take on at the moment.
+     * The queue manager will not fetch jobs from the server beyond this.
+     *
+     * @return The number of further jobs that can be accepted
+     */
+    int getFreeJobCapacity();
 }
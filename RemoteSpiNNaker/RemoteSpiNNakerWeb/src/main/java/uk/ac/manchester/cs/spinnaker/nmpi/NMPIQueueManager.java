@@ -1,21 +1,42 @@
 package uk.ac.manchester.cs.spinnaker.nmpi;
 
+import static java.lang.Math.min;
+import static java.util.concurrent.Executors.newFixedThreadPool;
+import static java.util.concurrent.Executors.newScheduledThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static org.joda.time.DateTimeZone.UTC;
 import static org.slf4j.LoggerFactory.getLogger;
 import static uk.ac.manchester.cs.spinnaker.rest.utils.RestClientUtils.createApiKeyClient;
 import static uk.ac.manchester.cs.spinnaker.rest.utils.RestClientUtils.createBasicClient;
 import static uk.ac.manchester.cs.spinnaker.utils.ThreadUtils.sleep;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.PostConstruct;
 
@@ -27,7 +48,7 @@ import uk.ac.manchester.cs.spinnaker.job.nmpi.DataItem;
 import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
 import uk.ac.manchester.cs.spinnaker.job.nmpi.QueueEmpty;
 import uk.ac.manchester.cs.spinnaker.job.nmpi.QueueNextResponse;
-import uk.ac.manchester.cs.spinnaker.model.NMPILog;
+import uk.ac.manchester.cs.spinnaker.nmpi.JobJournal.State;
 import uk.ac.manchester.cs.spinnaker.rest.NMPIQueue;
 import uk.ac.manchester.cs.spinnaker.rest.utils.CustomJacksonJsonProvider;
 import uk.ac.manchester.cs.spinnaker.rest.utils.PropertyBasedDeserialiser;
@@ -36,24 +57,47 @@ import uk.ac.manchester.cs.spinnaker.rest.utils.PropertyBasedDeserialiser;
  * Manages the NMPI queue, receiving jobs and submitting them to be run
  */
 public class NMPIQueueManager implements Runnable {
-	/**
-	 * The amount of time to sleep when an empty queue is detected.
-	 */
-	private static final int EMPTY_QUEUE_SLEEP_MS = 10000;
+	/** How long (in ms) to wait for each pool of threads to stop on close */
+	private static final long CLOSE_TIMEOUT = 10000;
 
 	/** The queue to get jobs from */
 	private NMPIQueue queue;
 	/** Marker to indicate if the manager is done or not */
-	private boolean done = false;
+	private volatile boolean done = false;
 	/** The set of listeners for this queue */
 	private final Set<NMPIQueueListener> listeners = new HashSet<>();
-	/** A cache of jobs that have been received */
-	private final Map<Integer, Job> jobCache = new HashMap<>();
-	/** The log of the job so far */
-	private final Map<Integer, NMPILog> jobLog = new HashMap<>();
+	/** A cache of jobs that have been received, and their logs so far */
+	private JobCache jobCache;
 	private Logger logger = getLogger(getClass());
+	/** Jobs that have been fetched and marked as queued, but not handed on */
+	private BlockingQueue<Job> prefetched;
+	/** Marks fetched jobs as queued on the server */
+	private ExecutorService statusUpdater;
+	/** Pull jobs from the server into the prefetch buffer, by hardware */
+	private final Map<String, Fetcher> fetchers = new LinkedHashMap<>();
+	/** The fetcher of each job in the prefetch buffer */
+	private final Map<Integer, Fetcher> prefetchedBy = new ConcurrentHashMap<>();
+	/** Hands jobs to the listeners */
+	private ExecutorService dispatcher;
+	/** Limits the number of jobs being handed to the listeners at once */
+	private Semaphore dispatchPermits;
+	/**
+	 * Times out calls to the listeners; kept apart from {@link #scheduler},
+	 * whose threads may all be busy talking to a slow server
+	 */
+	private ScheduledExecutorService dispatchTimer;
+	/** Runs delayed tasks, such as retries, log sends and journal syncs */
+	private ScheduledExecutorService scheduler;
+	/** Sends log updates to the server */
+	private LogShipper logShipper;
+	/** Sends status updates to the server */
+	private StatusUpdateQueue statusUpdates;
+	/** Records job state transitions on disk, or null if not configured */
+	private JobJournal journal;
+	/** The jobs left unfinished when the server last stopped */
+	private Map<Integer, State> unfinishedJobs = new HashMap<>();
 
-	/** The hardware identifier for the queue */
+	/** The hardware identifiers of the queues, separated by commas */
 	@Value("${nmpi.hardware}")
 	private String hardware;
 	/** The URL from which to load the data */
@@ -71,9 +115,78 @@ public class NMPIQueueManager implements Runnable {
 	 */
     @Value("${nmpi.passwordIsApiKey}")
     private boolean nmpiPasswordIsApiKey;
+	/** The shortest time (in ms) to wait after an empty queue or an error */
+	@Value("${nmpi.poll.minIntervalMs:500}")
+	private long pollMinInterval;
+	/** The longest time (in ms) to wait while the queue stays empty */
+	@Value("${nmpi.poll.maxEmptyIntervalMs:10000}")
+	private long pollMaxEmptyInterval;
+	/** The longest time (in ms) to wait while polling keeps failing */
+	@Value("${nmpi.poll.maxErrorIntervalMs:60000}")
+	private long pollMaxErrorInterval;
+	/** The most jobs to hold locally before they are handed on */
+	@Value("${nmpi.prefetch.maxJobs:10}")
+	private int prefetchMax;
+	/** The number of status updates that may be sent to the server at once */
+	@Value("${nmpi.prefetch.updateThreads:4}")
+	private int prefetchUpdateThreads;
+	/** The most jobs to cache, if there are finished jobs to evict */
+	@Value("${nmpi.cache.maxJobs:1000}")
+	private int cacheMaxJobs;
+	/** How long (in ms) a finished job may go unused before eviction */
+	@Value("${nmpi.cache.ttlMs:600000}")
+	private long cacheTimeToLive;
+	/** How long (in ms) to gather log appends before sending them */
+	@Value("${nmpi.log.windowMs:2000}")
+	private long logWindow;
+	/** How much log text to gather before sending it without waiting */
+	@Value("${nmpi.log.windowLength:65536}")
+	private int logWindowLength;
+	/** The number of characters to keep from the start of each log */
+	@Value("${nmpi.log.headLength:262144}")
+	private int logHeadLength;
+	/** The number of characters to keep from the end of each log */
+	@Value("${nmpi.log.tailLength:786432}")
+	private int logTailLength;
+	/** The number of log updates that may be sent to the server at once */
+	@Value("${nmpi.log.threads:2}")
+	private int logThreads;
+	/** The number of status updates that may be sent at once */
+	@Value("${nmpi.status.threads:2}")
+	private int statusThreads;
+	/** The most jobs that may have status updates waiting to be sent */
+	@Value("${nmpi.status.capacity:1000}")
+	private int statusCapacity;
+	/** The most times to try to send a status update */
+	@Value("${nmpi.status.maxAttempts:10}")
+	private int statusMaxAttempts;
+	/** The wait (in ms) before first retrying a status update */
+	@Value("${nmpi.status.minRetryMs:1000}")
+	private long statusMinRetryDelay;
+	/** The longest wait (in ms) between retries of a status update */
+	@Value("${nmpi.status.maxRetryMs:60000}")
+	private long statusMaxRetryDelay;
+	/** The number of threads handing jobs to the listeners */
+	@Value("${nmpi.dispatch.threads:4}")
+	private int dispatchThreads;
+	/** The most listener calls that may be running or waiting to run */
+	@Value("${nmpi.dispatch.maxPending:100}")
+	private int dispatchMaxPending;
+	/** How long (in ms) a listener may take to accept a job */
+	@Value("${nmpi.dispatch.timeoutMs:60000}")
+	private long dispatchTimeout;
+	/** The file to journal job state transitions in; empty for none */
+	@Value("${nmpi.journal.file:}")
+	private String journalFile;
+	/** How often (in ms) to write the journal to disk */
+	@Value("${nmpi.journal.syncIntervalMs:200}")
+	private long journalSyncInterval;
+	/** The number of journal records beyond which it is compacted */
+	@Value("${nmpi.journal.compactionThreshold:10000}")
+	private int journalCompactionThreshold;
 
 	@PostConstruct
-	private void initAPIClient() {
+	private void initAPIClient() throws IOException {
 		CustomJacksonJsonProvider provider = new CustomJacksonJsonProvider();
 
 		@SuppressWarnings("serial")
@@ -96,6 +209,80 @@ public class NMPIQueueManager implements Runnable {
 		}
 		queue = createApiKeyClient(nmpiUrl, nmpiUsername, apiKey,
 				NMPIQueue.class, provider);
+
+		jobCache = new JobCache(cacheMaxJobs, cacheTimeToLive);
+		prefetched = new LinkedBlockingQueue<>();
+		final ThreadGroup group = new ThreadGroup("NMPI Status");
+		statusUpdater = newFixedThreadPool(prefetchUpdateThreads,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(group, r, "NMPI Status Updater");
+					}
+				});
+		for (String platform : hardware.split(",")) {
+			platform = platform.trim();
+			if (!platform.isEmpty())
+				fetchers.put(platform, new Fetcher(platform));
+		}
+		if (fetchers.isEmpty())
+			throw new IllegalArgumentException(
+					"no hardware platforms given to poll");
+		dispatcher = newFixedThreadPool(dispatchThreads, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(group, r, "NMPI Dispatcher");
+			}
+		});
+		dispatchPermits = new Semaphore(dispatchMaxPending);
+		dispatchTimer = newSingleThreadScheduledExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				return new Thread(group, r, "NMPI Dispatch Timer");
+			}
+		});
+		scheduler = newScheduledThreadPool(
+				logThreads, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						return new Thread(group, r, "NMPI Scheduler");
+					}
+				});
+		logShipper = new LogShipper(queue, jobCache, scheduler, logWindow,
+				logWindowLength, logHeadLength, logTailLength);
+		statusUpdates = new StatusUpdateQueue(queue, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(group, r, "NMPI Status Sender");
+				t.setDaemon(true);
+				return t;
+			}
+		}, statusThreads, statusCapacity, statusMaxAttempts,
+				statusMinRetryDelay, statusMaxRetryDelay, scheduler);
+
+		if (!journalFile.isEmpty()) {
+			journal = new JobJournal(new File(journalFile),
+					journalCompactionThreshold);
+			unfinishedJobs = journal.replay();
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						journal.sync();
+					} catch (IOException e) {
+						logger.error("Error writing job journal", e);
+					}
+				}
+			}, journalSyncInterval, journalSyncInterval, MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Records a state transition of a job in the journal, if there is one.
+	 */
+	private void journal(int id, State state) {
+		if (journal != null)
+			journal.record(id, state);
 	}
 
 	/**
@@ -107,14 +294,21 @@ public class NMPIQueueManager implements Runnable {
 	 * @return The job
 	 */
 	private Job getJob(int id) {
-		synchronized (jobCache) {
-			Job job = jobCache.get(id);
-			if (job == null) {
-				job = queue.getJob(id);
-				jobCache.put(id, job);
-			}
-			return job;
+		Job job = jobCache.getJob(id);
+		if (job == null) {
+			job = queue.getJob(id);
+			jobCache.putJob(job);
 		}
+		return job;
+	}
+
+	/**
+	 * Gets the cache of jobs, so that its effectiveness can be monitored.
+	 *
+	 * @return The job cache
+	 */
+	public JobCache getJobCache() {
+		return jobCache;
 	}
 
 	/**
@@ -127,52 +321,387 @@ public class NMPIQueueManager implements Runnable {
 		listeners.add(listener);
 	}
 
+	/**
+	 * Gets the hardware platforms whose queues are polled.
+	 *
+	 * @return The hardware identifiers
+	 */
+	public Set<String> getHardwarePlatforms() {
+		return fetchers.keySet();
+	}
+
+	private Fetcher getFetcher(String hardware) {
+		Fetcher fetcher = fetchers.get(hardware);
+		if (fetcher == null)
+			throw new IllegalArgumentException("unknown hardware platform: "
+					+ hardware);
+		return fetcher;
+	}
+
+	/**
+	 * Gets the time that the manager is currently waiting between polls of
+	 * the queue of a hardware platform.
+	 *
+	 * @param hardware
+	 *            The hardware identifier of the queue
+	 * @return The poll interval in milliseconds; 0 when jobs are arriving
+	 */
+	public long getPollInterval(String hardware) {
+		return getFetcher(hardware).pollScheduler.getCurrentInterval();
+	}
+
+	/**
+	 * Gets the number of jobs that have been received from the queue of a
+	 * hardware platform since the manager started.
+	 *
+	 * @param hardware
+	 *            The hardware identifier of the queue
+	 * @return The number of jobs received
+	 */
+	public long getJobsReceived(String hardware) {
+		return getFetcher(hardware).jobsReceived.get();
+	}
+
+	/**
+	 * Gets the number of jobs that have been fetched from the queue of a
+	 * hardware platform but not yet handed to the listeners.
+	 *
+	 * @param hardware
+	 *            The hardware identifier of the queue
+	 * @return The number of prefetched jobs
+	 */
+	public int getQueueDepth(String hardware) {
+		Fetcher fetcher = getFetcher(hardware);
+		return fetcher.buffered.get() + fetcher.getUpdatesInFlight();
+	}
+
+	/**
+	 * Gets the number of jobs that have been fetched from the queues but not
+	 * yet handed to the listeners.
+	 *
+	 * @return The number of prefetched jobs
+	 */
+	public int getPrefetchedJobCount() {
+		int count = prefetched.size();
+		for (Fetcher fetcher : fetchers.values())
+			count += fetcher.getUpdatesInFlight();
+		return count;
+	}
+
+	/**
+	 * Deals with the jobs that were left unfinished when the server last
+	 * stopped. Jobs that had not started are handed to the listeners again;
+	 * jobs that had started cannot be resumed, so are marked as failed.
+	 */
+	private void recoverUnfinishedJobs() {
+		for (Entry<Integer, State> entry : unfinishedJobs.entrySet()) {
+			int id = entry.getKey();
+			try {
+				switch (entry.getValue()) {
+				case RECEIVED:
+				case QUEUED:
+					logger.info("Requeueing job " + id
+							+ " left over from before restart");
+					Job job = getJob(id);
+					job.setStatus("queued");
+					queue.updateJob(id, job);
+					journal(id, State.QUEUED);
+					prefetched.add(job);
+					break;
+				default:
+					logger.info("Failing job " + id
+							+ " that was running before restart");
+					setJobError(id, null, null, new IllegalStateException(
+							"The server was restarted while the job was "
+									+ "running"), 0, null);
+				}
+			} catch (Exception e) {
+				logger.error("Error recovering job " + id, e);
+			}
+		}
+		unfinishedJobs.clear();
+	}
+
 	@Override
 	public void run() {
-		while (!done) {
+		// Done before fetching, so the server cannot hand these jobs out again
+		recoverUnfinishedJobs();
+		List<Thread> fetcherThreads = new ArrayList<>();
+		for (Fetcher fetcher : fetchers.values()) {
+			Thread fetcherThread = new Thread(Thread.currentThread()
+					.getThreadGroup(), fetcher, "NMPI Fetcher ("
+					+ fetcher.hardware + ")");
+			fetcherThread.start();
+			fetcherThreads.add(fetcherThread);
+		}
+		try {
+			while (!done) {
+				Job job;
+				try {
+					job = prefetched.poll(pollMaxEmptyInterval, MILLISECONDS);
+				} catch (InterruptedException e) {
+					break;
+				}
+				if (job == null)
+					continue;
+				Fetcher fetcher = prefetchedBy.remove(job.getId());
+				if (fetcher != null)
+					fetcher.buffered.decrementAndGet();
+				try {
+					processResponse(job);
+				} catch (InterruptedException e) {
+					break;
+				} catch (Exception e) {
+					// Only this job is affected; carry on with the next
+					logger.error("Error in handing on job " + job.getId(), e);
+				}
+			}
+		} finally {
+			for (Thread fetcherThread : fetcherThreads)
+				fetcherThread.interrupt();
+			statusUpdater.shutdown();
+			dispatcher.shutdown();
+			dispatchTimer.shutdown();
+		}
+	}
+
+	/**
+	 * Work out how many more jobs may be fetched right now; this is limited
+	 * both by the size of the prefetch buffer and by how much work the
+	 * listeners are able to take on. The allowance is shared by the queues of
+	 * all the hardware platforms.
+	 */
+	private int getFetchAllowance() {
+		int buffered = getPrefetchedJobCount();
+		int allowance = prefetchMax - buffered;
+		for (NMPIQueueListener listener : listeners)
+			allowance = min(allowance, listener.getFreeJobCapacity()
+					- buffered);
+		return allowance;
+	}
+
+	/**
+	 * Fetches jobs from the queue of a hardware platform into the prefetch
+	 * buffer. Each job is marked as queued on the server before it enters the
+	 * buffer, but the fetcher does not wait for that to happen before asking
+	 * for the next job.
+	 */
+	private class Fetcher implements Runnable {
+		private final String hardware;
+		private final PollScheduler pollScheduler;
+		/** The jobs whose queued status has not yet reached the server */
+		private final Map<Integer, Future<?>> updatesInFlight = new HashMap<>();
+		/** The number of jobs from this queue in the prefetch buffer */
+		private final AtomicInteger buffered = new AtomicInteger();
+		/** The number of jobs received from this queue */
+		private final AtomicLong jobsReceived = new AtomicLong();
+
+		Fetcher(String hardware) {
+			this.hardware = hardware;
+			pollScheduler = new PollScheduler(pollMinInterval,
+					pollMaxEmptyInterval, pollMaxErrorInterval);
+		}
+
+		int getUpdatesInFlight() {
+			synchronized (updatesInFlight) {
+				return updatesInFlight.size();
+			}
+		}
+
+		@Override
+		public void run() {
+			while (!done) {
+				long delay;
+				try {
+					delay = fetchJobs();
+				} catch (Exception e) {
+					logger.error("Error in getting next job", e);
+					delay = pollScheduler.error();
+				}
+				if (delay > 0) {
+					logger.trace("Next poll in " + delay + "ms");
+					sleep(delay);
+				}
+			}
+		}
+
+		/**
+		 * Fetch as many jobs as there is room for.
+		 *
+		 * @return How long to wait before fetching again
+		 */
+		private long fetchJobs() {
+			if (getFetchAllowance() <= 0)
+				return pollScheduler.busy();
+			// Checked for each job, as the other queues share the allowance
+			while (!done && getFetchAllowance() > 0) {
+				QueueNextResponse response = queue.getNextJob(hardware);
+				if (response instanceof QueueEmpty)
+					return pollScheduler.queueEmpty();
+				else if (!(response instanceof Job))
+					throw new IllegalStateException();
+
+				pollScheduler.jobReceived();
+				if (!fetched((Job) response)) {
+					/*
+					 * The server handed out a job that we are still marking as
+					 * queued; let it catch up before asking again.
+					 */
+					awaitUpdatesInFlight();
+					break;
+				}
+			}
+			return 0;
+		}
+
+		/** @return False if the job was already being fetched */
+		private boolean fetched(final Job job) {
+			final int id = job.getId();
+			synchronized (updatesInFlight) {
+				if (updatesInFlight.containsKey(id))
+					return false;
+				logger.debug("Job " + id + " received from " + hardware);
+				jobsReceived.incrementAndGet();
+				jobCache.putJob(job);
+				journal(id, State.RECEIVED);
+				job.setTimestampSubmission(job.getTimestampSubmission()
+						.withZoneRetainFields(UTC));
+				job.setTimestampCompletion(null);
+				job.setStatus("queued");
+				updatesInFlight.put(id, statusUpdater.submit(new Runnable() {
+					@Override
+					public void run() {
+						markQueued(job);
+					}
+				}));
+			}
+			return true;
+		}
+
+		private void markQueued(Job job) {
+			int id = job.getId();
 			try {
-				// logger.debug("Getting next job");
-				processResponse(queue.getNextJob(hardware));
+				logger.debug("Updating job " + id + " status on server");
+				queue.updateJob(id, job);
+				journal(id, State.QUEUED);
+				// Must be added before the job stops counting as in flight
+				prefetchedBy.put(id, this);
+				buffered.incrementAndGet();
+				prefetched.add(job);
 			} catch (Exception e) {
-				logger.error("Error in getting next job", e);
-				sleep(EMPTY_QUEUE_SLEEP_MS);
+				// The job will be handed out again by the server
+				logger.error("Error marking job " + id + " as queued", e);
+			} finally {
+				synchronized (updatesInFlight) {
+					updatesInFlight.remove(id);
+				}
+			}
+		}
+
+		private void awaitUpdatesInFlight() {
+			List<Future<?>> updates;
+			synchronized (updatesInFlight) {
+				updates = new ArrayList<>(updatesInFlight.values());
 			}
+			for (Future<?> update : updates)
+				try {
+					update.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				} catch (ExecutionException e) {
+					// Already logged by the update itself
+				}
 		}
 	}
 
-	private void processResponse(QueueNextResponse response)
-			throws MalformedURLException {
-		if (response instanceof QueueEmpty)
-			sleep(EMPTY_QUEUE_SLEEP_MS);
-		else if (response instanceof Job)
-			processResponse((Job) response);
-		else
-			throw new IllegalStateException();
+	/**
+	 * Hands a job to each of the listeners. Each listener is called on a
+	 * thread of its own, so that a slow listener holds up neither the others
+	 * nor the handing on of the next job; this only waits if too many calls
+	 * are already waiting to be made.
+	 */
+	private void processResponse(Job job) throws InterruptedException {
+		for (NMPIQueueListener listener : listeners) {
+			dispatchPermits.acquire();
+			try {
+				dispatcher.execute(new Dispatch(job, listener));
+			} catch (RuntimeException e) {
+				dispatchPermits.release();
+				throw e;
+			}
+		}
 	}
 
-	private void processResponse(Job job) throws MalformedURLException {
-		synchronized (jobCache) {
-			jobCache.put(job.getId(), job);
+	/**
+	 * A call to a listener to add a job. If the listener takes too long, it
+	 * is interrupted; if it then fails, the job is marked as in error.
+	 */
+	private class Dispatch implements Runnable {
+		private final Job job;
+		private final NMPIQueueListener listener;
+		private Thread runner;
+		private boolean timedOut;
+
+		Dispatch(Job job, NMPIQueueListener listener) {
+			this.job = job;
+			this.listener = listener;
 		}
-		logger.debug("Job " + job.getId() + " received");
-		try {
-			for (NMPIQueueListener listener : listeners)
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				runner = Thread.currentThread();
+			}
+			ScheduledFuture<?> timer = dispatchTimer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					timeout();
+				}
+			}, dispatchTimeout, MILLISECONDS);
+			try {
 				listener.addJob(job);
-			logger.debug("Setting job status to queued");
-			job.setTimestampSubmission(job.getTimestampSubmission()
-					.withZoneRetainFields(UTC));
-			job.setTimestampCompletion(null);
-			job.setStatus("queued");
-			logger.debug("Updating job status on server");
-			queue.updateJob(job.getId(), job);
-		} catch (IOException e) {
+			} catch (Exception e) {
+				failed(e);
+			} finally {
+				timer.cancel(false);
+				synchronized (this) {
+					runner = null;
+				}
+				// Do not let a late timeout interrupt the next dispatch
+				Thread.interrupted();
+				dispatchPermits.release();
+			}
+		}
+
+		private synchronized void timeout() {
+			if (runner == null)
+				return;
+			timedOut = true;
+			logger.warn("Listener " + listener + " is taking too long to "
+					+ "accept job " + job.getId() + "; interrupting it");
+			runner.interrupt();
+		}
+
+		private void failed(Exception e) {
+			synchronized (this) {
+				if (timedOut)
+					e = new IOException("job was not accepted within "
+							+ dispatchTimeout + "ms", e);
+			}
 			logger.error("Error in executing job", e);
-			setJobError(job.getId(), null, null, e, 0, null);
+			try {
+				setJobError(job.getId(), null, null, e, 0, null);
+			} catch (Exception e2) {
+				logger.error("Error marking job " + job.getId()
+						+ " as failed", e2);
+			}
 		}
 	}
 
 	/**
-	 * Appends log messages to the log
+	 * Appends log messages to the log. The server is updated shortly
+	 * afterwards, along with anything else appended in the meantime.
 	 * 
 	 * @param id
 	 *            The id of the job
@@ -180,22 +709,33 @@ public class NMPIQueueManager implements Runnable {
 	 *            The messages to append
 	 */
 	public void appendJobLog(int id, String logToAppend) {
-		NMPILog existingLog = jobLog.get(id);
-		if (existingLog == null) {
-			existingLog = new NMPILog();
-			jobLog.put(id, existingLog);
-		}
-		existingLog.appendContent(logToAppend);
-		logger.debug("Job " + id + " log is being updated");
-		queue.updateLog(id, existingLog);
+		logShipper.append(id, logToAppend);
 	}
 
+	/**
+	 * Marks a job as running. The server is updated in the background.
+	 * 
+	 * @param id
+	 *            The id of the job
+	 */
 	public void setJobRunning(int id) {
 		logger.debug("Job " + id + " is running");
 		Job job = getJob(id);
 		job.setStatus("running");
-		logger.debug("Updating job status on server");
-		queue.updateJob(id, job);
+		journal(id, State.RUNNING);
+		statusUpdates.update(job);
+	}
+
+	/**
+	 * Notes that a machine has been allocated to a job. This is only recorded
+	 * locally; the server is not told.
+	 *
+	 * @param id
+	 *            The id of the job
+	 */
+	public void setJobMachineAllocated(int id) {
+		logger.debug("Job " + id + " has been allocated a machine");
+		journal(id, State.MACHINE_ALLOCATED);
 	}
 
 	/**
@@ -217,6 +757,7 @@ public class NMPIQueueManager implements Runnable {
 
 		if (logToAppend != null)
 			appendJobLog(id, logToAppend);
+		logShipper.flush(id);
 
 		Job job = getJob(id);
 		job.setStatus("finished");
@@ -225,8 +766,8 @@ public class NMPIQueueManager implements Runnable {
 		job.setResourceUsage(resourceUsage);
 		job.setProvenance(provenance);
 
-		logger.debug("Updating job status on server");
-		queue.updateJob(id, job);
+		journal(id, State.FINISHED);
+		statusUpdates.update(job);
 	}
 
 	/**
@@ -252,11 +793,12 @@ public class NMPIQueueManager implements Runnable {
 		StringBuilder logMessage = new StringBuilder();
 		if (logToAppend != null)
 			logMessage.append(logToAppend);
-		if (jobLog.containsKey(id) || logMessage.length() > 0)
+		if (jobCache.hasLog(id) || logMessage.length() > 0)
 			logMessage.append("\n\n==================\n");
 		logMessage.append("Error:\n");
 		logMessage.append(errors.toString());
 		appendJobLog(id, logMessage.toString());
+		logShipper.flush(id);
 
 		Job job = getJob(id);
 		job.setStatus("error");
@@ -265,14 +807,52 @@ public class NMPIQueueManager implements Runnable {
 		job.setResourceUsage(resourceUsage);
 		job.setProvenance(provenance);
 
-		logger.debug("Updating job on server");
-		queue.updateJob(id, job);
+		journal(id, State.FINISHED);
+		statusUpdates.update(job);
+	}
+
+	/**
+	 * Gets the number of jobs with status updates waiting to be sent to the
+	 * server.
+	 *
+	 * @return The number of waiting updates
+	 */
+	public int getPendingStatusUpdates() {
+		return statusUpdates.size();
 	}
 
 	/**
-	 * Close the manager
+	 * Close the manager. Log text not yet sent is sent first; the threads
+	 * of the manager are then stopped, waiting a while for those that are
+	 * busy.
 	 */
 	public void close() {
 		done = true;
+		statusUpdates.close();
+		logShipper.flushAll();
+		shutdown(scheduler);
+		shutdown(dispatcher);
+		shutdown(dispatchTimer);
+		shutdown(statusUpdater);
+		if (journal != null)
+			try {
+				journal.close();
+			} catch (IOException e) {
+				logger.error("Error closing job journal", e);
+			}
+	}
+
+	private void shutdown(ExecutorService executor) {
+		executor.shutdown();
+		try {
+			if (!executor.awaitTermination(CLOSE_TIMEOUT, MILLISECONDS)) {
+				logger.warn("Threads still busy after " + CLOSE_TIMEOUT
+						+ "ms; interrupting them");
+				executor.shutdownNow();
+			}
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		}
 	}
 }
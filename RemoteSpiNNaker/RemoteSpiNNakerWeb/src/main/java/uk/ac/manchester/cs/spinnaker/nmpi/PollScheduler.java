@@ -0,0 +1,116 @@
+package uk.ac.manchester.cs.spinnaker.nmpi;
+
+import static java.lang.Math.min;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Works out how long to wait before the next poll of the NMPI queue. The queue
+ * is polled again immediately after a job is received, backs off
+ * exponentially (with jitter) while the queue stays empty, and backs off
+ * separately (and further) when polling fails.
+ */
+class PollScheduler {
+	/** The shortest wait after an empty queue or an error */
+	private final long minInterval;
+	/** The longest wait while the queue is empty */
+	private final long maxEmptyInterval;
+	/** The longest wait while polling keeps failing */
+	private final long maxErrorInterval;
+
+	/** The un-jittered wait for the next empty queue, or 0 if none yet */
+	private long emptyInterval = 0;
+	/** The un-jittered wait for the next error, or 0 if none yet */
+	private long errorInterval = 0;
+	/** The wait most recently handed out */
+	private volatile long currentInterval = 0;
+
+	/**
+	 * @param minInterval
+	 *            The shortest wait (in ms) after an empty queue or an error
+	 * @param maxEmptyInterval
+	 *            The longest wait (in ms) while the queue stays empty
+	 * @param maxErrorInterval
+	 *            The longest wait (in ms) while polling keeps failing
+	 */
+	PollScheduler(long minInterval, long maxEmptyInterval,
+			long maxErrorInterval) {
+		if (minInterval <= 0 || maxEmptyInterval < minInterval
+				|| maxErrorInterval < minInterval)
+			throw new IllegalArgumentException("bad poll intervals: "
+					+ minInterval + ", " + maxEmptyInterval + ", "
+					+ maxErrorInterval);
+		this.minInterval = minInterval;
+		this.maxEmptyInterval = maxEmptyInterval;
+		this.maxErrorInterval = maxErrorInterval;
+	}
+
+	/**
+	 * Note that a job was received.
+	 *
+	 * @return The time to wait (in ms) before polling again; always 0
+	 */
+	synchronized long jobReceived() {
+		emptyInterval = 0;
+		errorInterval = 0;
+		currentInterval = 0;
+		return 0;
+	}
+
+	/**
+	 * Note that the queue was found to be empty.
+	 *
+	 * @return The time to wait (in ms) before polling again
+	 */
+	synchronized long queueEmpty() {
+		errorInterval = 0;
+		emptyInterval = next(emptyInterval, maxEmptyInterval);
+		currentInterval = jitter(emptyInterval);
+		return currentInterval;
+	}
+
+	/**
+	 * Note that polling was skipped because there was no room for more jobs.
+	 *
+	 * @return The time to wait (in ms) before checking for room again
+	 */
+	synchronized long busy() {
+		currentInterval = minInterval;
+		return minInterval;
+	}
+
+	/**
+	 * Note that polling the queue failed.
+	 *
+	 * @return The time to wait (in ms) before polling again
+	 */
+	synchronized long error() {
+		emptyInterval = 0;
+		errorInterval = next(errorInterval, maxErrorInterval);
+		currentInterval = jitter(errorInterval);
+		return currentInterval;
+	}
+
+	/**
+	 * @return The time (in ms) that was most recently chosen to wait between
+	 *         polls
+	 */
+	long getCurrentInterval() {
+		return currentInterval;
+	}
+
+	private long next(long interval, long max) {
+		if (interval <= 0)
+			return minInterval;
+		return min(interval * 2, max);
+	}
+
+	/**
+	 * Picks a wait uniformly from the upper half of the interval, so that
+	 * servers started together do not poll in lock-step.
+	 */
+	private static long jitter(long interval) {
+		long half = interval / 2;
+		return interval - half + ThreadLocalRandom.current().nextLong(half + 1);
+	}
+}
@@ -0,0 +1,236 @@
+package uk.ac.manchester.cs.spinnaker.nmpi;
+
+import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.slf4j.LoggerFactory.getLogger;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import javax.ws.rs.WebApplicationException;
+
+import org.slf4j.Logger;
+
+import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
+import uk.ac.manchester.cs.spinnaker.rest.NMPIQueue;
+
+/**
+ * Sends job status updates to the NMPI server in the background. Updates of
+ * the same job that are waiting to be sent are merged, so that only the
+ * latest state of a job is sent, and updates of the same job are never sent
+ * at the same time. Updates that fail for reasons that might go away are
+ * retried with exponential backoff.
+ */
+class StatusUpdateQueue {
+	private final NMPIQueue queue;
+	/** The most jobs that may have updates waiting to be sent */
+	private final int capacity;
+	/** The most times to try to send an update */
+	private final int maxAttempts;
+	/** The wait (in ms) before the first retry */
+	private final long minRetryDelay;
+	/** The longest wait (in ms) between retries */
+	private final long maxRetryDelay;
+	private final ScheduledExecutorService retryScheduler;
+	/** The updates waiting to be sent, oldest first */
+	private final Map<Integer, Job> pending = new LinkedHashMap<>();
+	/** The jobs whose updates are being sent right now */
+	private final Set<Integer> sending = new HashSet<>();
+	/** The number of failed attempts to send the update of each job */
+	private final Map<Integer, Integer> failures = new HashMap<>();
+	private volatile boolean done = false;
+	private Logger logger = getLogger(getClass());
+
+	/**
+	 * @param queue
+	 *            The queue to send updates to
+	 * @param threadFactory
+	 *            Makes the threads that send updates
+	 * @param nThreads
+	 *            The number of updates that may be sent at once
+	 * @param capacity
+	 *            The most jobs that may have updates waiting to be sent;
+	 *            adding updates for more jobs than this waits for room
+	 * @param maxAttempts
+	 *            The most times to try to send an update
+	 * @param minRetryDelay
+	 *            The wait (in ms) before the first retry
+	 * @param maxRetryDelay
+	 *            The longest wait (in ms) between retries
+	 * @param retryScheduler
+	 *            Where to schedule retries
+	 */
+	StatusUpdateQueue(NMPIQueue queue, ThreadFactory threadFactory,
+			int nThreads, int capacity, int maxAttempts, long minRetryDelay,
+			long maxRetryDelay, ScheduledExecutorService retryScheduler) {
+		this.queue = queue;
+		this.capacity = capacity;
+		this.maxAttempts = maxAttempts;
+		this.minRetryDelay = minRetryDelay;
+		this.maxRetryDelay = maxRetryDelay;
+		this.retryScheduler = retryScheduler;
+		for (int i = 0; i < nThreads; i++)
+			threadFactory.newThread(new Runnable() {
+				@Override
+				public void run() {
+					sendUpdates();
+				}
+			}).start();
+	}
+
+	/**
+	 * Queues the current state of a job to be sent to the server. Replaces
+	 * any update of the job that has not yet been sent. If interrupted while
+	 * waiting for room, the update is queued anyway, going over the capacity,
+	 * as losing it would leave the job in the wrong state on the server; the
+	 * thread is left interrupted.
+	 *
+	 * @param job
+	 *            The job to send
+	 */
+	void update(Job job) {
+		int id = job.getId();
+		synchronized (pending) {
+			while (!pending.containsKey(id) && pending.size() >= capacity
+					&& !done)
+				if (waitfor(pending)) {
+					Thread.currentThread().interrupt();
+					break;
+				}
+			pending.put(id, job);
+			failures.remove(id);
+			pending.notifyAll();
+		}
+	}
+
+	/** @return The number of jobs with updates waiting to be sent */
+	int size() {
+		synchronized (pending) {
+			return pending.size();
+		}
+	}
+
+	/**
+	 * Stops sending updates; any that have not been sent are lost.
+	 */
+	void close() {
+		done = true;
+		synchronized (pending) {
+			pending.notifyAll();
+		}
+	}
+
+	private void sendUpdates() {
+		while (!done) {
+			Job job = takeNext();
+			if (job == null)
+				continue;
+			try {
+				logger.debug("Updating job " + job.getId()
+						+ " status on server");
+				queue.updateJob(job.getId(), job);
+				synchronized (pending) {
+					failures.remove(job.getId());
+				}
+			} catch (Exception e) {
+				failed(job, e);
+			} finally {
+				synchronized (pending) {
+					sending.remove(job.getId());
+					pending.notifyAll();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the oldest update that is not of a job already being sent, waiting
+	 * if there is none.
+	 *
+	 * @return The update, or <tt>null</tt> if interrupted or closed
+	 */
+	private Job takeNext() {
+		synchronized (pending) {
+			while (!done) {
+				Iterator<Job> iterator = pending.values().iterator();
+				while (iterator.hasNext()) {
+					Job job = iterator.next();
+					if (sending.add(job.getId())) {
+						iterator.remove();
+						pending.notifyAll();
+						return job;
+					}
+				}
+				if (waitfor(pending))
+					break;
+			}
+			return null;
+		}
+	}
+
+	private void failed(final Job job, Exception e) {
+		final int id = job.getId();
+		int attempts;
+		synchronized (pending) {
+			Integer previous = failures.get(id);
+			attempts = (previous == null ? 0 : previous) + 1;
+			failures.put(id, attempts);
+		}
+		if (done) {
+			logger.error("Could not update job " + id + " before closing", e);
+			return;
+		}
+		if (!isTransient(e) || attempts >= maxAttempts) {
+			logger.error("Giving up updating job " + id + " after "
+					+ attempts + " attempts", e);
+			synchronized (pending) {
+				failures.remove(id);
+			}
+			return;
+		}
+
+		long delay = min(minRetryDelay << min(attempts - 1, 30), maxRetryDelay);
+		logger.warn("Error updating job " + id + "; retrying in " + delay
+				+ "ms", e);
+		retryScheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (pending) {
+					// A newer update replaces the retry
+					if (!pending.containsKey(id) && failures.containsKey(id)) {
+						pending.put(id, job);
+						pending.notifyAll();
+					}
+				}
+			}
+		}, delay, MILLISECONDS);
+	}
+
+	/**
+	 * Determines if a failure might go away if the update is tried again.
+	 */
+	private static boolean isTransient(Exception e) {
+		if (e instanceof WebApplicationException) {
+			int status = ((WebApplicationException) e).getResponse()
+					.getStatus();
+			return status >= 500 || status == 429;
+		}
+		// Problems with the connection, rather than the update
+		return true;
+	}
+
+	private static boolean waitfor(Object obj) {
+		try {
+			obj.wait();
+			return false;
+		} catch (InterruptedException e) {
+			return true;
+		}
+	}
+}
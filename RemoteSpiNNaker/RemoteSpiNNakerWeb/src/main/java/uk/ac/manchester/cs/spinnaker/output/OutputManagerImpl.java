@@ -2,6 +2,7 @@ package uk.ac.manchester.cs.spinnaker.output;
 
 import static java.lang.System.currentTimeMillis;
 import static java.nio.file.Files.move;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
 import static java.nio.file.Files.probeContentType;
 import static java.util.concurrent.Executors.newScheduledThreadPool;
 import static java.util.concurrent.TimeUnit.DAYS;
@@ -9,6 +10,8 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static javax.ws.rs.core.Response.Status.BAD_REQUEST;
 import static javax.ws.rs.core.Response.Status.INTERNAL_SERVER_ERROR;
 import static javax.ws.rs.core.Response.Status.NOT_FOUND;
+import static org.apache.commons.io.FileUtils.cleanDirectory;
+import static org.apache.commons.io.FileUtils.forceMkdir;
 import static org.slf4j.LoggerFactory.getLogger;
 import static uk.ac.manchester.cs.spinnaker.rest.utils.RestClientUtils.createBearerClient;
 
@@ -19,6 +22,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -40,6 +44,8 @@ import uk.ac.manchester.cs.spinnaker.rest.UnicoreFileClient;
 //TODO needs security; Role = OutputHandler
 public class OutputManagerImpl implements OutputManager {
     private static final String PURGED_FILE = ".purged_";
+    /** Where outputs are uploaded to before the job finishes */
+    private static final String STAGING_DIRECTORY = ".staging";
 
     @Value("${results.directory}")
     private File resultsDirectory;
@@ -113,6 +119,14 @@ public class OutputManagerImpl implements OutputManager {
     	timeToKeepResults = MILLISECONDS.convert(nDaysToKeepResults, DAYS);
     }
 
+    @PostConstruct
+    void initStagingDirectory() throws IOException {
+		// Jobs do not survive a restart, so neither do their uploads
+		File staging = new File(resultsDirectory, STAGING_DIRECTORY);
+		forceMkdir(staging);
+		cleanDirectory(staging);
+    }
+
     @PostConstruct
     void initPurgeScheduler() {
 		ScheduledExecutorService scheduler = newScheduledThreadPool(1);
@@ -128,7 +142,8 @@ public class OutputManagerImpl implements OutputManager {
 		if (projectId == null || projectId.isEmpty() || projectId.endsWith("/"))
 			throw new IllegalArgumentException("bad projectId");
 		String name = new File(projectId).getName();
-		if (name.equals(".") || name.equals("..") || name.isEmpty())
+		if (name.equals(".") || name.equals("..") || name.isEmpty()
+				|| name.equals(STAGING_DIRECTORY))
 			throw new IllegalArgumentException("bad projectId");
 		return new File(resultsDirectory, name);
 	}
@@ -159,7 +174,7 @@ public class OutputManagerImpl implements OutputManager {
 
 				File newOutput = new File(idDirectory, outputPath);
 				newOutput.getParentFile().mkdirs();
-				move(output.toPath(), newOutput.toPath());
+				publish(output, newOutput);
 				URL outputUrl = new URL(baseServerUrl, "output/" + pId + "/"
 						+ id + "/" + outputPath);
 				outputData.add(new DataItem(outputUrl.toExternalForm()));
@@ -171,6 +186,26 @@ public class OutputManagerImpl implements OutputManager {
 		}
     }
 
+	/**
+	 * Moves a file into place. Files from the staging directory are renamed,
+	 * so they appear whole and are not copied; others have to be copied.
+	 */
+	private void publish(File source, File target) throws IOException {
+		try {
+			move(source.toPath(), target.toPath(), ATOMIC_MOVE);
+		} catch (AtomicMoveNotSupportedException e) {
+			logger.debug("Copying " + source + " to another volume");
+			move(source.toPath(), target.toPath());
+		}
+	}
+
+	@Override
+	public File getStagingDirectory() throws IOException {
+		File staging = new File(resultsDirectory, STAGING_DIRECTORY);
+		forceMkdir(staging);
+		return staging;
+	}
+
     private Response getResultFile(
             File idDirectory, String filename, boolean download) {
         File resultFile = new File(idDirectory, filename);
@@ -309,6 +344,7 @@ public class OutputManagerImpl implements OutputManager {
 		long startTime = currentTimeMillis();
 		for (File projectDirectory : resultsDirectory.listFiles())
 			if (projectDirectory.isDirectory()
+					&& !projectDirectory.getName().equals(STAGING_DIRECTORY)
 					&& removeOldProjectDirectoryContents(startTime,
 							projectDirectory)) {
 				logger.info("No more outputs for project "
@@ -51,8 +51,11 @@ import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 import com.nimbusds.jose.JWSAlgorithm;
 import com.nimbusds.oauth2.sdk.ParseException;
 
+import uk.ac.manchester.cs.spinnaker.jobmanager.FairShareJobScheduler;
+import uk.ac.manchester.cs.spinnaker.jobmanager.FifoJobScheduler;
 import uk.ac.manchester.cs.spinnaker.jobmanager.JobExecuterFactory;
 import uk.ac.manchester.cs.spinnaker.jobmanager.JobManager;
+import uk.ac.manchester.cs.spinnaker.jobmanager.JobScheduler;
 import uk.ac.manchester.cs.spinnaker.jobmanager.LocalJobExecuterFactory;
 import uk.ac.manchester.cs.spinnaker.jobmanager.XenVMExecuterFactory;
 import uk.ac.manchester.cs.spinnaker.machine.SpinnakerMachine;
@@ -96,6 +99,9 @@ public class RemoteSpinnakerBeans {
     @Value("${xen.server.enabled}")
     private boolean useXenVms;
 
+    @Value("${scheduler.fairShare:true}")
+    private boolean useFairShare;
+
     @Value("${baseserver.url}${cxf.path}${cxf.rest.path}/")
     private URL baseServerUrl;
 
@@ -233,6 +239,13 @@ public class RemoteSpinnakerBeans {
 		return new XenVMExecuterFactory();
 	}
 
+	@Bean
+	public JobScheduler jobScheduler() {
+		if (!useFairShare)
+			return new FifoJobScheduler();
+		return new FairShareJobScheduler();
+	}
+
 	@Bean
 	public OutputManager outputManager() {
 		// Pass this, as it is non-trivial constructed value
@@ -9,8 +9,10 @@ import java.io.File;
 import java.io.IOException;
 import java.util.EnumSet;
 
+import javax.servlet.FilterRegistration;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
+import javax.servlet.ServletRegistration.Dynamic;
 
 import org.apache.cxf.transport.servlet.CXFServlet;
 import org.springframework.core.env.PropertySource;
@@ -57,15 +59,18 @@ public class WebApplicationConfig implements WebApplicationInitializer {
 
 	private void addServlet(ServletContext container,
 			PropertySource<?> properties) {
-		container.addServlet("cxf", CXFServlet.class).addMapping(
-				properties.getProperty("cxf.path") + "/*");
+		Dynamic servlet = container.addServlet("cxf", CXFServlet.class);
+		servlet.addMapping(properties.getProperty("cxf.path") + "/*");
+		// Long-polling requests are suspended rather than holding threads
+		servlet.setAsyncSupported(true);
 	}
 
 	private void addFilterChain(ServletContext container) {
-		container
-				.addFilter(FILTER_NAME, new DelegatingFilterProxy(FILTER_NAME))
-				.addMappingForUrlPatterns(EnumSet.of(REQUEST, ERROR, ASYNC),
-						false, "/*");
+		FilterRegistration.Dynamic filter = container.addFilter(FILTER_NAME,
+				new DelegatingFilterProxy(FILTER_NAME));
+		filter.addMappingForUrlPatterns(EnumSet.of(REQUEST, ERROR, ASYNC),
+				false, "/*");
+		filter.setAsyncSupported(true);
 	}
 
 	private PropertySource<?> getPropertySource() throws IOException {
@@ -35,6 +35,11 @@ public interface NMPIQueue {
     @Produces("application/json")
     Job getJob(@PathParam("id") int id);
 
+    @GET
+    @Path("log/{id}")
+    @Produces("application/json")
+    NMPILog getLog(@PathParam("id") int id);
+
     @PUT
     @Path("log/{id}")
     @Consumes("application/json")
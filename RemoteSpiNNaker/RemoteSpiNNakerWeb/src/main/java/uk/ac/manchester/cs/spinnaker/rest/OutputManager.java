@@ -39,6 +39,18 @@ public interface OutputManager {
 	List<DataItem> addOutputs(String projectId, int id, File rootFile,
 			Collection<File> outputs) throws IOException;
 
+	/**
+	 * Gets a directory in which outputs may be written before they are added
+	 * with {@link #addOutputs(String, int, File, Collection)}. It is on the
+	 * same volume as the hosted outputs, so adding files from it does not
+	 * copy them.
+	 *
+	 * @return The staging directory
+	 * @throws IOException
+	 *             If the directory cannot be made
+	 */
+	File getStagingDirectory() throws IOException;
+
 	/**
 	 * Gets a results file.
 	 * 
@@ -29,7 +29,7 @@ import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.AuthCache;
 import org.apache.http.client.CredentialsProvider;
-import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
@@ -38,7 +38,7 @@ import org.apache.http.impl.auth.RFC2617Scheme;
 import org.apache.http.impl.client.BasicAuthCache;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.DefaultHttpClient;
-import org.apache.http.impl.conn.BasicClientConnectionManager;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.HttpContext;
@@ -51,6 +51,8 @@ import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 
 public class RestClientUtils {
 	private static Logger log = getLogger(RestClientUtils.class);
+	/** The number of requests that a client may have open at once */
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 10;
 
 	protected static ResteasyClient createRestClient(URL url,
 			Credentials credentials, AuthScheme authScheme) {
@@ -59,9 +61,11 @@ public class RestClientUtils {
 			HttpContext localContext = getConnectionContext(url, credentials,
 					authScheme);
 
-			// Set up the connection
-			ClientConnectionManager cm = new BasicClientConnectionManager(
+			// Set up the connection; pooled, as clients are used by many threads
+			PoolingClientConnectionManager cm = new PoolingClientConnectionManager(
 					schemeRegistry);
+			cm.setDefaultMaxPerRoute(MAX_CONNECTIONS_PER_ROUTE);
+			cm.setMaxTotal(MAX_CONNECTIONS_PER_ROUTE);
 			DefaultHttpClient httpClient = new DefaultHttpClient(cm);
 			ApacheHttpClient4Engine engine = new ApacheHttpClient4Engine(
 					httpClient, localContext);
@@ -78,8 +82,37 @@ public class RestClientUtils {
 		}
 	}
 
-	/** Set up authentication */
-	private static HttpContext getConnectionContext(URL url,
+	/**
+	 * Set up authentication. The context is per-thread, as HttpClient records
+	 * the state of each request in its context.
+	 */
+	private static HttpContext getConnectionContext(final URL url,
+			final Credentials credentials, final AuthScheme authScheme) {
+		final ThreadLocal<HttpContext> contexts = new ThreadLocal<HttpContext>() {
+			@Override
+			protected HttpContext initialValue() {
+				return createConnectionContext(url, credentials, authScheme);
+			}
+		};
+		return new HttpContext() {
+			@Override
+			public Object getAttribute(String id) {
+				return contexts.get().getAttribute(id);
+			}
+
+			@Override
+			public void setAttribute(String id, Object obj) {
+				contexts.get().setAttribute(id, obj);
+			}
+
+			@Override
+			public Object removeAttribute(String id) {
+				return contexts.get().removeAttribute(id);
+			}
+		};
+	}
+
+	private static HttpContext createConnectionContext(URL url,
 			Credentials credentials, AuthScheme authScheme) {
 		int port = url.getPort();
 		if (port == -1)
@@ -138,6 +171,9 @@ public class RestClientUtils {
 		SchemeRegistry schemeRegistry = new SchemeRegistry();
 		schemeRegistry.register(new Scheme("https", 443, new SSLSocketFactory(
 				sslContext, ALLOW_ALL_HOSTNAME_VERIFIER)));
+		// Plain HTTP is for local services, such as test stand-ins
+		schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory
+				.getSocketFactory()));
 		return schemeRegistry;
 	}
 
@@ -157,7 +193,9 @@ public class RestClientUtils {
 	public static <T> T createClient(URL url, Credentials credentials,
 			AuthScheme authScheme, Class<T> clazz, Object... providers) {
 		ResteasyClient client = createRestClient(url, credentials, authScheme);
-		client.register(new JacksonJsonProvider());
+		// A default provider would compete with any that are supplied
+		if (providers.length == 0)
+			client.register(new JacksonJsonProvider());
 		for (Object provider : providers)
 			client.register(provider);
 		return client.target(url.toString()).proxy(clazz);
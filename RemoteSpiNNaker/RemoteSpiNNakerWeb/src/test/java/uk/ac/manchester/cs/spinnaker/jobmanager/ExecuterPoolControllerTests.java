@@ -0,0 +1,67 @@
+package uk.ac.manchester.cs.spinnaker.jobmanager;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class ExecuterPoolControllerTests {
+	/** A controller whose clock only moves when told to */
+	private static class Controller extends ExecuterPoolController {
+		long time = 1000000;
+
+		Controller() {
+			super(4, 1, 2, 1000, 4000);
+		}
+
+		@Override
+		long now() {
+			return time;
+		}
+
+		void launch(int count) {
+			for (int i = 0; i < count; i++)
+				launched();
+		}
+	}
+
+	@Test
+	public void launchesAreRateLimited() {
+		Controller controller = new Controller();
+		assertEquals(2, controller.getLaunchCount(10, 0, 0, 0, -1));
+		controller.launch(2);
+		assertEquals(0, controller.getLaunchCount(10, 2, 2, 0, -1));
+		assertEquals(1000, controller.getLaunchDelay());
+
+		controller.time += 1000;
+		assertEquals(1, controller.getLaunchCount(10, 2, 2, 0, -1));
+		controller.launch(1);
+
+		// Never more than the limit, nor more than the jobs need
+		controller.time += 10000;
+		assertEquals(1, controller.getLaunchCount(10, 3, 3, 0, -1));
+		assertEquals(0, controller.getLaunchCount(3, 3, 3, 0, -1));
+		assertEquals(0, controller.getLaunchCount(4, 2, 3, 1, -1));
+		assertEquals(0, controller.getLaunchCount(10, 0, 3, 0, 3));
+	}
+
+	@Test
+	public void failuresBackOff() {
+		Controller controller = new Controller();
+		controller.failed();
+		assertEquals(1000, controller.getLaunchDelay());
+		assertEquals(0, controller.getLaunchCount(1, 0, 0, 0, -1));
+		controller.failed();
+		assertEquals(2000, controller.getLaunchDelay());
+		controller.failed();
+		controller.failed();
+		assertEquals(4000, controller.getLaunchDelay());
+		assertEquals(4, controller.getFailureCount());
+
+		controller.time += 4000;
+		assertEquals(1, controller.getLaunchCount(1, 0, 0, 0, -1));
+		controller.failed();
+		controller.succeeded();
+		assertEquals(0, controller.getLaunchDelay());
+		assertEquals(1, controller.getLaunchCount(1, 0, 0, 0, -1));
+	}
+}
@@ -0,0 +1,115 @@
+package uk.ac.manchester.cs.spinnaker.jobmanager;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
+
+public class FairShareJobSchedulerTests {
+	/** A scheduler whose clock only moves when told to */
+	private static class Scheduler extends FairShareJobScheduler {
+		long time = 1000000;
+
+		Scheduler(double agingRate, double runningJobCharge) {
+			super(3600000, agingRate, runningJobCharge);
+		}
+
+		@Override
+		long now() {
+			return time;
+		}
+	}
+
+	private static int nextId = 1;
+
+	private static Job job(String collab) {
+		Job job = new Job();
+		job.setId(nextId++);
+		job.setCollabId(collab);
+		return job;
+	}
+
+	@Test
+	public void collabWithRunningJobsWaits() throws InterruptedException {
+		Scheduler scheduler = new Scheduler(1, 1000);
+		for (int i = 0; i < 5; i++)
+			scheduler.addJob(job("busy"));
+		scheduler.time += 1000;
+		scheduler.addJob(job("quiet"));
+
+		assertEquals("busy", scheduler.takeNextJob().getCollabId());
+		assertEquals("quiet", scheduler.takeNextJob().getCollabId());
+		assertEquals("busy", scheduler.takeNextJob().getCollabId());
+		assertEquals(3, scheduler.size());
+	}
+
+	@Test
+	public void lowUsageGoesFirst() throws InterruptedException {
+		Scheduler scheduler = new Scheduler(1, 0);
+		scheduler.addJob(job("a"));
+		Job first = scheduler.takeNextJob();
+		scheduler.jobFinished(first.getId(), 1000000);
+
+		scheduler.addJob(job("a"));
+		scheduler.time += 1000;
+		scheduler.addJob(job("b"));
+		assertEquals("b", scheduler.takeNextJob().getCollabId());
+		assertEquals("a", scheduler.takeNextJob().getCollabId());
+	}
+
+	@Test
+	public void agingOvercomesUsage() throws InterruptedException {
+		Scheduler scheduler = new Scheduler(10, 0);
+		scheduler.addJob(job("a"));
+		scheduler.jobFinished(scheduler.takeNextJob().getId(), 1000);
+
+		scheduler.addJob(job("a"));
+		// b's job arrives after a's has waited long enough to make up for it
+		scheduler.time += 200000;
+		scheduler.addJob(job("b"));
+		assertEquals("a", scheduler.takeNextJob().getCollabId());
+	}
+
+	@Test
+	public void weightsShareUsage() throws InterruptedException {
+		Scheduler scheduler = new Scheduler(0, 0);
+		scheduler.setCollabWeights("big=4, small=1");
+		scheduler.addJob(job("big"));
+		scheduler.jobFinished(scheduler.takeNextJob().getId(), 3000);
+		scheduler.addJob(job("small"));
+		scheduler.jobFinished(scheduler.takeNextJob().getId(), 1000);
+
+		scheduler.addJob(job("small"));
+		scheduler.addJob(job("big"));
+		assertEquals("big", scheduler.takeNextJob().getCollabId());
+	}
+
+	@Test
+	public void returnedJobKeepsItsPlace() throws InterruptedException {
+		Scheduler scheduler = new Scheduler(1, 0);
+		Job first = job("a");
+		scheduler.addJob(first);
+		scheduler.time += 1000;
+		scheduler.addJob(job("a"));
+		scheduler.addJob(job("b"));
+
+		// Still older than b's job, and before a's other one
+		assertSame(first, scheduler.takeNextJob());
+		scheduler.returnJob(first);
+		assertEquals(3, scheduler.size());
+		assertSame(first, scheduler.takeNextJob());
+	}
+
+	@Test
+	public void waitTimes() throws InterruptedException {
+		Scheduler scheduler = new Scheduler(1, 0);
+		scheduler.addJob(job("a"));
+		scheduler.time += 500;
+		scheduler.takeNextJob();
+		assertEquals(0, scheduler.size());
+		WaitTimes times = scheduler.getWaitTimes().get("a");
+		assertEquals(1, times.getCount());
+		assertEquals(500, times.getLongest());
+	}
+}
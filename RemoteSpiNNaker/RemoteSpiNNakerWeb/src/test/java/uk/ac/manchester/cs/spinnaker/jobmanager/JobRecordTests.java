@@ -0,0 +1,54 @@
+package uk.ac.manchester.cs.spinnaker.jobmanager;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
+import uk.ac.manchester.cs.spinnaker.machine.SpinnakerMachine;
+
+public class JobRecordTests {
+	@Test
+	public void finishesOnce() throws IOException {
+		Job job = new Job();
+		job.setId(1);
+		JobRecord record = new JobRecord(job, "executer");
+		SpinnakerMachine machine = new SpinnakerMachine("m1", "5", 8, 8, 1,
+				null);
+		assertTrue(record.addMachine(machine));
+		File staging = new File(System.getProperty("java.io.tmpdir"));
+		File directory = record.makeOutputDirectory(staging);
+		try {
+			assertTrue(directory.isDirectory());
+			assertEquals(staging, directory.getParentFile());
+			assertSame(directory, record.makeOutputDirectory(staging));
+
+			assertTrue(record.finish());
+			assertFalse(record.finish());
+			assertFalse(record.addMachine(machine));
+			assertEquals(1, record.getMachines().size());
+			try {
+				record.makeOutputDirectory(staging);
+				fail("made output directory for finished job");
+			} catch (IOException e) {
+				// Expected
+			}
+		} finally {
+			directory.delete();
+		}
+	}
+
+	@Test
+	public void tracksUsage() {
+		JobRecord record = new JobRecord(new Job(), "executer");
+		assertNull(record.getProvenance());
+		record.addProvenance("a", "b");
+		assertEquals("b", record.getProvenance().get("a"));
+		record.setResources(30, 0);
+		assertEquals(60, record.setRunTime(2000));
+		assertEquals(60, record.getResourceUsage());
+	}
+}
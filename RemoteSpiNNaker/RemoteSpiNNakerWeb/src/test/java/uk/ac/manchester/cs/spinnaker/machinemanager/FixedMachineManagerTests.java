@@ -0,0 +1,168 @@
+package uk.ac.manchester.cs.spinnaker.machinemanager;
+
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+import static uk.ac.manchester.cs.spinnaker.utils.ThreadUtils.sleep;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import org.junit.Test;
+
+import uk.ac.manchester.cs.spinnaker.machine.SpinnakerMachine;
+
+public class FixedMachineManagerTests {
+	@Test
+	public void tellsListenersOfChanges() {
+		SpinnakerMachine machine = new SpinnakerMachine("m1", "5", 8, 8, 1,
+				null);
+		FixedMachineManagerImpl manager = new FixedMachineManagerImpl();
+		manager.setInitialMachines(asList(machine));
+		final List<SpinnakerMachine> changed = new ArrayList<>();
+		MachineStateListener listener = new MachineStateListener() {
+			@Override
+			public void machineStateChanged(SpinnakerMachine m) {
+				changed.add(m);
+			}
+		};
+		manager.addStateListener(listener);
+
+		assertEquals(machine, manager.getNextAvailableMachine(1));
+		assertTrue(manager.isMachineAvailable(machine));
+		manager.releaseMachine(machine);
+		assertFalse(manager.isMachineAvailable(machine));
+		assertEquals(asList(machine, machine), changed);
+
+		manager.removeStateListener(listener);
+		manager.getNextAvailableMachine(1);
+		assertEquals(2, changed.size());
+		manager.close();
+	}
+
+	@Test
+	public void sharesLargeMachines() {
+		SpinnakerMachine small = new SpinnakerMachine("small", "5", 12, 12, 3,
+				null);
+		SpinnakerMachine large = new SpinnakerMachine("large", "5", 24, 24,
+				12, "bmp");
+		FixedMachineManagerImpl manager = new FixedMachineManagerImpl();
+		manager.setTriadRootHosts("large=h0, h1, h2, h3");
+		manager.setInitialMachines(asList(large, small));
+
+		// Best fit: a small job goes on the small machine
+		assertSame(small, manager.getNextAvailableMachine(1));
+
+		// Then small jobs share the large machine
+		SpinnakerMachine a = manager.getNextAvailableMachine(2);
+		assertEquals("h0", a.getMachineName());
+		assertNull(a.getBmpDetails());
+		assertEquals(3, a.getnBoards());
+		assertEquals(12, a.getWidth());
+		SpinnakerMachine b = manager.getNextAvailableMachine(6);
+		assertEquals("h1", b.getMachineName());
+		assertEquals(6, b.getnBoards());
+		assertEquals(12, b.getWidth());
+		assertEquals(24, b.getHeight());
+		SpinnakerMachine c = manager.getNextAvailableMachine(3);
+		assertEquals("h2", c.getMachineName());
+		assertEquals(3, c.getnBoards());
+		assertTrue(manager.isMachineAvailable(a));
+		assertTrue(manager.isMachineAvailable(c));
+
+		// Freed parts join up again
+		manager.releaseMachine(a);
+		assertFalse(manager.isMachineAvailable(a));
+		assertTrue(manager.isMachineAvailable(c));
+		manager.releaseMachine(b);
+		manager.releaseMachine(c);
+		assertSame(large, manager.getNextAvailableMachine(12));
+		manager.close();
+	}
+
+	@Test
+	public void givesOutWholeMachinesWithoutRootHosts() throws Exception {
+		SpinnakerMachine large = new SpinnakerMachine("large", "5", 24, 24,
+				12, null);
+		FixedMachineManagerImpl manager = new FixedMachineManagerImpl();
+		manager.setInitialMachines(asList(large));
+		manager.setTriadRootHosts("other=h0,h1,h2,h3");
+
+		assertSame(large, manager.getNextAvailableMachine(1));
+
+		// Nothing else fits until the machine is released
+		FutureTask<SpinnakerMachine> next = request(manager, 1, -1);
+		awaitWaiting(manager, 1);
+		manager.releaseMachine(large);
+		assertSame(large, next.get(5, SECONDS));
+		manager.close();
+	}
+
+	/** Asks for a machine in the background */
+	private static FutureTask<SpinnakerMachine> request(
+			final MachineManager manager, final int nBoards,
+			final double runTime) {
+		FutureTask<SpinnakerMachine> task = new FutureTask<>(
+				new Callable<SpinnakerMachine>() {
+					@Override
+					public SpinnakerMachine call() {
+						return manager.getNextAvailableMachine(nBoards, runTime);
+					}
+				});
+		new Thread(task).start();
+		return task;
+	}
+
+	private static void awaitWaiting(FixedMachineManagerImpl manager, int n) {
+		for (int i = 0; i < 500 && manager.getWaitingCount() != n; i++)
+			sleep(10);
+		assertEquals(n, manager.getWaitingCount());
+	}
+
+	@Test
+	public void backfillsBeforeReservation() throws Exception {
+		SpinnakerMachine large = new SpinnakerMachine("large", "5", 24, 24,
+				12, null);
+		final long[] time = {0};
+		FixedMachineManagerImpl manager = new FixedMachineManagerImpl(true,
+				3600000) {
+			@Override
+			long now() {
+				return time[0];
+			}
+		};
+		manager.setTriadRootHosts("large=h0,h1,h2,h3");
+		manager.setInitialMachines(asList(large));
+
+		SpinnakerMachine a = manager.getNextAvailableMachine(6, 1000);
+		assertEquals(6, a.getnBoards());
+
+		// The whole machine is reserved for when a is expected to finish
+		FutureTask<SpinnakerMachine> whole = request(manager, 12, 1000);
+		awaitWaiting(manager, 1);
+
+		// A short job can run on the rest until then, but a long one cannot
+		SpinnakerMachine b = manager.getNextAvailableMachine(3, 500);
+		assertEquals(3, b.getnBoards());
+		assertEquals(1, manager.getBackfilledCount());
+		FutureTask<SpinnakerMachine> tooLong = request(manager, 3, 5000);
+		awaitWaiting(manager, 2);
+
+		time[0] = 600;
+		manager.releaseMachine(b);
+		awaitWaiting(manager, 2);
+		manager.releaseMachine(a);
+		assertSame(large, whole.get(5, SECONDS));
+		assertFalse(tooLong.isDone());
+
+		time[0] = 1200;
+		manager.releaseMachine(large);
+		assertEquals(3, tooLong.get(5, SECONDS).getnBoards());
+		assertEquals(1, manager.getBackfilledCount());
+		assertTrue(manager.getUtilisation() > 0.5);
+		assertEquals(0, manager.getWaitingCount());
+		manager.close();
+	}
+}
@@ -0,0 +1,59 @@
+package uk.ac.manchester.cs.spinnaker.machinemanager;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class KeepAliveTrackerTests {
+	/** A tracker whose clock only moves when told to */
+	private static class Tracker extends KeepAliveTracker {
+		long time = 1000000;
+
+		Tracker() {
+			super(0.5);
+		}
+
+		@Override
+		long now() {
+			return time;
+		}
+	}
+
+	@Test
+	public void sendsWhenHalfTheTimeHasPassed() {
+		Tracker tracker = new Tracker();
+		tracker.setKeepAlive(1, 60);
+		tracker.time += 10000;
+		tracker.setKeepAlive(2, 10);
+		tracker.setKeepAlive(3, 0);
+
+		// Job 2 is due first, 5s after it was added
+		assertEquals(5000, tracker.getDelay());
+		tracker.time += 5000;
+		assertEquals(asList(2), tracker.takeDueJobs());
+		assertEquals(15000, tracker.getDelay());
+
+		// Answered 1s after it was sent, with 4s to spare
+		tracker.time += 1000;
+		assertEquals(4000, tracker.answered(2));
+		assertEquals(4000, tracker.getDelay());
+		assertEquals(Collections.singletonMap(2, 4000L), tracker.getMargins());
+
+		tracker.time += 14000;
+		assertEquals(2, tracker.takeDueJobs().size());
+		tracker.failed(1);
+		assertEquals(1000, tracker.getDelay());
+		// Answered too late
+		tracker.time += 1000;
+		assertEquals(-6000, tracker.answered(2));
+		assertEquals(-6000, tracker.getMinimumMargin());
+		assertEquals(asList(1), tracker.takeDueJobs());
+
+		tracker.remove(1);
+		tracker.remove(2);
+		assertEquals(-1, tracker.getDelay());
+	}
+}
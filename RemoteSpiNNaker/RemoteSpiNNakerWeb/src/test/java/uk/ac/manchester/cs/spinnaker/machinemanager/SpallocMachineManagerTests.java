@@ -0,0 +1,211 @@
+package uk.ac.manchester.cs.spinnaker.machinemanager;
+
+import static java.lang.Math.min;
+import static java.util.Arrays.asList;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.junit.Assert.*;
+import static uk.ac.manchester.cs.spinnaker.utils.ThreadUtils.sleep;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+import uk.ac.manchester.cs.spinnaker.machine.SpinnakerMachine;
+import uk.ac.manchester.cs.spinnaker.machinemanager.responses.Machine;
+
+public class SpallocMachineManagerTests {
+	/** The server end of a connection from the manager */
+	private static class Connection implements AutoCloseable {
+		final Socket socket;
+		final BufferedReader in;
+		final PrintWriter out;
+
+		/**
+		 * Accepts a connection, and answers the request to be told of changes
+		 * to machines that is always sent first.
+		 */
+		Connection(ServerSocket server) throws IOException {
+			socket = server.accept();
+			in = new BufferedReader(new InputStreamReader(
+					socket.getInputStream()));
+			out = new PrintWriter(socket.getOutputStream(), true);
+			assertTrue(in.readLine().contains("notify_machine"));
+			out.println("{\"return\":null}");
+		}
+
+		@Override
+		public void close() throws IOException {
+			// Wait for the manager to go
+			in.readLine();
+			socket.close();
+		}
+	}
+
+	private static String machine(String name, int width) {
+		return "{\"name\":\"" + name + "\",\"tags\":[\"default\"],\"width\":"
+				+ width + ",\"height\":1}";
+	}
+
+	@Test(timeout = 30000)
+	public void requestsArePipelined() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try (final ServerSocket server = new ServerSocket(0, 1,
+				InetAddress.getLoopbackAddress())) {
+			// Only answers once it has been sent two requests
+			Future<List<String>> served = executor
+					.submit(new Callable<List<String>>() {
+						@Override
+						public List<String> call() throws Exception {
+							try (Connection connection = new Connection(server)) {
+								String first = connection.in.readLine();
+								String second = connection.in.readLine();
+								connection.out.println("{\"return\":["
+										+ machine("m", 2) + "]}");
+								connection.out
+										.println("{\"exception\":\"failed\"}");
+								return asList(first, second);
+							}
+						}
+					});
+
+			final SpallocMachineManagerImpl manager = new SpallocMachineManagerImpl(
+					"127.0.0.1", server.getLocalPort(), "test");
+			manager.startThreads();
+			Callable<Machine[]> list = new Callable<Machine[]>() {
+				@Override
+				public Machine[] call() {
+					try {
+						return manager.listMachines();
+					} catch (IOException e) {
+						return null;
+					}
+				}
+			};
+			Future<Machine[]> a = executor.submit(list);
+			Future<Machine[]> b = executor.submit(list);
+			Machine[] first = a.get(10, SECONDS);
+			Machine[] second = b.get(10, SECONDS);
+			manager.close();
+
+			// One got the machines, the other the error
+			assertTrue((first == null) != (second == null));
+			Machine[] machines = (first == null) ? second : first;
+			assertEquals(1, machines.length);
+			assertEquals(2, machines[0].getWidth());
+			for (String request : served.get(10, SECONDS))
+				assertTrue(request.contains("list_machines"));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void longResponsesAreSplitIntoLines() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try (final ServerSocket server = new ServerSocket(0, 1,
+				InetAddress.getLoopbackAddress())) {
+			final int nMachines = 5000;
+			executor.submit(new Callable<Void>() {
+				@Override
+				public Void call() throws Exception {
+					try (Connection connection = new Connection(server)) {
+						connection.in.readLine();
+						StringBuilder response = new StringBuilder(
+								"{\"jobs_changed\":[]}\n{\"return\":[");
+						for (int i = 0; i < nMachines; i++)
+							response.append(i == 0 ? "" : ",").append(
+									machine("m" + i, 1));
+						response.append("]}\r\n");
+
+						// Send in pieces that do not line up with the lines
+						OutputStream out = connection.socket.getOutputStream();
+						byte[] bytes = response.toString().getBytes("UTF-8");
+						for (int i = 0; i < bytes.length; i += 1000) {
+							out.write(bytes, i, min(1000, bytes.length - i));
+							out.flush();
+						}
+					}
+					return null;
+				}
+			});
+
+			SpallocMachineManagerImpl manager = new SpallocMachineManagerImpl(
+					"127.0.0.1", server.getLocalPort(), "test");
+			manager.startThreads();
+			List<SpinnakerMachine> machines = manager.getMachines();
+			manager.close();
+
+			assertEquals(nMachines, machines.size());
+			assertEquals("m" + (nMachines - 1),
+					machines.get(nMachines - 1).getMachineName());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 30000)
+	public void machinesAreListedWhenChanged() throws Exception {
+		ExecutorService executor = Executors.newCachedThreadPool();
+		try (final ServerSocket server = new ServerSocket(0, 1,
+				InetAddress.getLoopbackAddress())) {
+			final CountDownLatch change = new CountDownLatch(1);
+			Future<Integer> served = executor.submit(new Callable<Integer>() {
+				@Override
+				public Integer call() throws Exception {
+					int nListed = 0;
+					try (Connection connection = new Connection(server)) {
+						connection.in.readLine();
+						nListed++;
+						connection.out.println("{\"return\":["
+								+ machine("m0", 1) + "," + machine("m1", 1)
+								+ "]}");
+
+						change.await();
+						connection.out.println("{\"machines_changed\":[\"m1\"]}");
+						connection.in.readLine();
+						nListed++;
+						connection.out.println("{\"return\":["
+								+ machine("m0", 1) + "," + machine("m1", 2)
+								+ "]}");
+					}
+					return nListed;
+				}
+			});
+
+			SpallocMachineManagerImpl manager = new SpallocMachineManagerImpl(
+					"127.0.0.1", server.getLocalPort(), "test");
+			manager.startThreads();
+			List<SpinnakerMachine> machines = manager.getMachines();
+			assertEquals(2, machines.size());
+			assertSame(machines, manager.getMachines());
+
+			// Only the changed machine is replaced
+			change.countDown();
+			List<SpinnakerMachine> changed = machines;
+			for (int i = 0; i < 500 && changed == machines; i++) {
+				sleep(10);
+				changed = manager.getMachines();
+			}
+			manager.close();
+
+			assertSame(machines.get(0), changed.get(0));
+			assertEquals(2, changed.get(1).getnBoards());
+			assertEquals(2, (int) served.get(10, SECONDS));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
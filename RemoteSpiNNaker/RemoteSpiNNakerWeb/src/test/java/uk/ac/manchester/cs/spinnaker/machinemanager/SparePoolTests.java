@@ -0,0 +1,54 @@
+package uk.ac.manchester.cs.spinnaker.machinemanager;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class SparePoolTests {
+	/** A pool whose clock only moves when told to */
+	private static class Pool extends SparePool {
+		long time = 1000000;
+
+		Pool() {
+			super(2, 1);
+		}
+
+		@Override
+		long now() {
+			return time;
+		}
+	}
+
+	@Test
+	public void sparesAreKeptForTheCommonestSize() {
+		Pool pool = new Pool();
+		assertEquals(Collections.emptyList(), pool.takeNeeded());
+
+		// Nothing is ready the first time
+		assertNull(pool.take(3));
+		assertEquals(asList(3, 3), pool.takeNeeded());
+		assertEquals(Collections.emptyList(), pool.takeNeeded());
+		pool.filled(3, 10);
+		pool.failed(3);
+		assertEquals(asList(3), pool.takeNeeded());
+		pool.filled(3, 11);
+		assertEquals(2, pool.getReadyCount());
+
+		// The oldest spare is used first
+		pool.time += 2000;
+		assertEquals(10, (int) pool.take(3));
+		assertEquals(0.5, pool.getHitRate(), 0.0);
+		assertEquals(12.0, pool.getIdleBoardSeconds(), 0.0);
+
+		// Once another size is more common, its spares are not wanted
+		assertNull(pool.take(1));
+		assertNull(pool.take(1));
+		assertEquals(asList(1, 1), pool.takeNeeded());
+		assertEquals(asList(11), pool.takeUnwanted());
+		assertEquals(0, pool.getReadyCount());
+		assertFalse(pool.remove(11));
+	}
+}
@@ -0,0 +1,86 @@
+package uk.ac.manchester.cs.spinnaker.nmpi;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
+import uk.ac.manchester.cs.spinnaker.model.NMPILog;
+
+public class JobCacheTests {
+	private static Job job(int id, String status) {
+		Job job = new Job();
+		job.setId(id);
+		job.setStatus(status);
+		return job;
+	}
+
+	@Test
+	public void hitsAndMisses() {
+		JobCache cache = new JobCache(10, 60000);
+		assertNull(cache.getJob(1));
+		cache.putJob(job(1, "queued"));
+		assertNotNull(cache.getJob(1));
+		assertEquals(1, cache.getHits());
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Test
+	public void evictsOnlyFinishedJobsWhenFull() {
+		JobCache cache = new JobCache(2, 60000);
+		cache.putJob(job(1, "running"));
+		cache.putJob(job(2, "finished"));
+		cache.putJob(job(3, "queued"));
+		assertEquals(2, cache.size());
+		assertNull(cache.getJob(2));
+		assertNotNull(cache.getJob(1));
+
+		cache.putJob(job(4, "error"));
+		cache.putJob(job(5, "running"));
+		assertEquals(3, cache.size());
+		assertEquals(2, cache.getEvictions());
+		assertNotNull(cache.getJob(1));
+		assertNotNull(cache.getJob(3));
+	}
+
+	@Test
+	public void evictsExpiredFinishedJobs() throws InterruptedException {
+		JobCache cache = new JobCache(100, 10);
+		cache.putJob(job(1, "finished"));
+		cache.putJob(job(2, "running"));
+		Thread.sleep(50);
+		cache.putJob(job(3, "queued"));
+		assertEquals(2, cache.size());
+		assertNull(cache.getJob(1));
+		assertNotNull(cache.getJob(2));
+	}
+
+	@Test
+	public void evictsExpiredLogsWithoutJobs() throws InterruptedException {
+		JobCache cache = new JobCache(100, 10);
+		cache.putLog(1, new NMPILog());
+		cache.putJob(job(2, "running"));
+		cache.getLog(2);
+		Thread.sleep(50);
+		cache.putJob(job(3, "queued"));
+		assertFalse(cache.hasLog(1));
+		assertTrue(cache.hasLog(2));
+		assertEquals(2, cache.size());
+	}
+
+	@Test
+	public void evictedLogsAreNotRecreated() {
+		JobCache cache = new JobCache(1, 60000);
+		cache.putJob(job(1, "finished"));
+		cache.getLog(1).appendContent("all of it");
+		cache.putJob(job(2, "running"));
+		assertFalse(cache.hasLog(1));
+
+		// Only a log loaded again may be appended to
+		assertNull(cache.getLog(1));
+		NMPILog loaded = new NMPILog();
+		assertSame(loaded, cache.putLog(1, loaded));
+		assertSame(loaded, cache.putLog(1, new NMPILog()));
+		assertSame(loaded, cache.getLog(1));
+	}
+}
@@ -0,0 +1,126 @@
+package uk.ac.manchester.cs.spinnaker.nmpi;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import uk.ac.manchester.cs.spinnaker.nmpi.JobJournal.State;
+
+public class JobJournalTests {
+	private File file;
+
+	@Before
+	public void makeFile() throws IOException {
+		file = File.createTempFile("journal", ".log");
+		file.delete();
+	}
+
+	@After
+	public void deleteFile() {
+		file.delete();
+	}
+
+	@Test
+	public void replaysUnfinishedJobs() throws IOException {
+		try (JobJournal journal = new JobJournal(file, 1000)) {
+			assertTrue(journal.replay().isEmpty());
+			journal.record(1, State.RECEIVED);
+			journal.record(2, State.RECEIVED);
+			journal.record(1, State.QUEUED);
+			journal.record(2, State.RUNNING);
+			journal.record(3, State.RECEIVED);
+			journal.record(3, State.FINISHED);
+		}
+
+		try (JobJournal journal = new JobJournal(file, 1000)) {
+			Map<Integer, State> unfinished = journal.replay();
+			assertEquals(2, unfinished.size());
+			assertEquals(State.QUEUED, unfinished.get(1));
+			assertEquals(State.RUNNING, unfinished.get(2));
+		}
+	}
+
+	@Test
+	public void ignoresDamagedRecord() throws IOException {
+		try (JobJournal journal = new JobJournal(file, 1000)) {
+			journal.replay();
+			journal.record(1, State.RUNNING);
+		}
+		try (FileOutputStream out = new FileOutputStream(file, true)) {
+			out.write("2 RUN".getBytes("US-ASCII"));
+		}
+
+		try (JobJournal journal = new JobJournal(file, 1000)) {
+			Map<Integer, State> unfinished = journal.replay();
+			assertEquals(1, unfinished.size());
+			assertEquals(State.RUNNING, unfinished.get(1));
+			journal.record(1, State.FINISHED);
+			journal.record(3, State.RUNNING);
+		}
+
+		// Records written after the damage are not lost with it
+		try (JobJournal journal = new JobJournal(file, 1000)) {
+			Map<Integer, State> unfinished = journal.replay();
+			assertEquals(1, unfinished.size());
+			assertEquals(State.RUNNING, unfinished.get(3));
+		}
+	}
+
+	@Test
+	public void compacts() throws IOException {
+		try (JobJournal journal = new JobJournal(file, 10)) {
+			journal.replay();
+			for (int id = 0; id < 20; id++) {
+				journal.record(id, State.RECEIVED);
+				if (id != 7)
+					journal.record(id, State.FINISHED);
+			}
+			journal.sync();
+			long length = file.length();
+			assertTrue(length > 0 && length < 20);
+		}
+
+		try (JobJournal journal = new JobJournal(file, 10)) {
+			Map<Integer, State> unfinished = journal.replay();
+			assertEquals(1, unfinished.size());
+			assertEquals(State.RECEIVED, unfinished.get(7));
+		}
+	}
+
+	@Test
+	public void keepsRecordsWhenCompactionFails() throws IOException {
+		File newFile = new File(file.getPath() + ".new");
+		try (JobJournal journal = new JobJournal(file, 2)) {
+			journal.replay();
+			journal.record(1, State.RECEIVED);
+			journal.record(1, State.QUEUED);
+			journal.record(1, State.RUNNING);
+
+			// The new journal cannot be written where a directory is
+			assertTrue(newFile.mkdir());
+			try {
+				journal.sync();
+				fail("compaction should have failed");
+			} catch (IOException e) {
+				// Expected
+			} finally {
+				newFile.delete();
+			}
+			journal.record(2, State.RECEIVED);
+		}
+
+		try (JobJournal journal = new JobJournal(file, 2)) {
+			Map<Integer, State> unfinished = journal.replay();
+			assertEquals(2, unfinished.size());
+			assertEquals(State.RUNNING, unfinished.get(1));
+			assertEquals(State.RECEIVED, unfinished.get(2));
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package uk.ac.manchester.cs.spinnaker.nmpi;
+
+import static com.fasterxml.jackson.databind.DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES;
+import static com.fasterxml.jackson.databind.PropertyNamingStrategy.CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES;
+import static java.util.concurrent.Executors.newCachedThreadPool;
+import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+import static org.joda.time.DateTimeZone.UTC;
+import static uk.ac.manchester.cs.spinnaker.utils.ThreadUtils.sleep;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.joda.time.DateTime;
+
+import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
+import uk.ac.manchester.cs.spinnaker.job.nmpi.QueueEmpty;
+import uk.ac.manchester.cs.spinnaker.model.APIKeyResponse;
+import uk.ac.manchester.cs.spinnaker.model.NMPILog;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.joda.JodaModule;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for the NMPI service, serving the parts of the API in
+ * {@link uk.ac.manchester.cs.spinnaker.rest.NMPIQueue NMPIQueue} over HTTP.
+ * Synthetic jobs are submitted to it at a chosen rate, and every response is
+ * delayed by a chosen latency. It records when each job was submitted and
+ * when the server was told that it was running and finished.
+ */
+public class LocalNMPIQueue implements AutoCloseable {
+	private static final String API = "/api/v2/";
+
+	/** What the server knows of a job */
+	public static class JobRecord {
+		public final Job job;
+		/** When (in ns) the job was submitted */
+		public final long submitted;
+		/** When (in ns) the server was told the job was running, or 0 */
+		public volatile long running;
+		/** When (in ns) the server was told the job was finished, or 0 */
+		public volatile long finished;
+
+		JobRecord(Job job) {
+			this.job = job;
+			submitted = System.nanoTime();
+		}
+	}
+
+	private final HttpServer server;
+	private final ExecutorService handlers = newCachedThreadPool();
+	private final ScheduledExecutorService submitter = newSingleThreadScheduledExecutor();
+	private final ObjectMapper mapper = new ObjectMapper();
+	private final long latency;
+	private final Deque<Job> submitted = new ArrayDeque<>();
+	private final Map<Integer, JobRecord> jobs = new HashMap<>();
+	private final AtomicInteger nextId = new AtomicInteger(1);
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong logUpdates = new AtomicLong();
+
+	/**
+	 * Starts the server on a free port of the loopback interface.
+	 *
+	 * @param latency
+	 *            How long (in ms) to delay each response
+	 * @throws IOException
+	 *             If the server cannot be started
+	 */
+	public LocalNMPIQueue(long latency) throws IOException {
+		this.latency = latency;
+		mapper.setPropertyNamingStrategy(CAMEL_CASE_TO_LOWER_CASE_WITH_UNDERSCORES);
+		mapper.configure(FAIL_ON_UNKNOWN_PROPERTIES, false);
+		mapper.registerModule(new JodaModule());
+
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext(API, new HttpHandler() {
+			@Override
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					respond(exchange);
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		server.setExecutor(handlers);
+		server.start();
+	}
+
+	/** @return The URL to give to the queue manager */
+	public URL getUrl() throws IOException {
+		return new URL("http://127.0.0.1:" + server.getAddress().getPort()
+				+ "/");
+	}
+
+	/**
+	 * Submits synthetic jobs to the queue in the background.
+	 *
+	 * @param count
+	 *            The number of jobs to submit
+	 * @param perSecond
+	 *            The rate at which to submit them
+	 */
+	public void submitJobs(final int count, double perSecond) {
+		final AtomicInteger remaining = new AtomicInteger(count);
+		submitter.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				if (remaining.getAndDecrement() > 0)
+					submitJob();
+			}
+		}, 0, (long) (1000000 / perSecond), MICROSECONDS);
+	}
+
+	/**
+	 * Submits a synthetic job to the queue now.
+	 *
+	 * @return The id of the job
+	 */
+	public int submitJob() {
+		Job job = new Job();
+		job.setId(nextId.getAndIncrement());
+		job.setStatus("submitted");
+		job.setCollabId("load-test");
+		job.setUserId("load-test");
+		job.setCode("synthetic");
+		job.setHardwarePlatform("SpiNNaker");
+		job.setTimestampSubmission(new DateTime(UTC));
+		synchronized (jobs) {
+			jobs.put(job.getId(), new JobRecord(job));
+			submitted.add(job);
+		}
+		return job.getId();
+	}
+
+	/** @return What the server knows of each job, by id */
+	public Map<Integer, JobRecord> getJobs() {
+		synchronized (jobs) {
+			return new HashMap<>(jobs);
+		}
+	}
+
+	/** @return The number of jobs that the server knows to be finished */
+	public int getFinishedCount() {
+		int count = 0;
+		synchronized (jobs) {
+			for (JobRecord record : jobs.values())
+				if (record.finished != 0)
+					count++;
+		}
+		return count;
+	}
+
+	/** @return The number of requests that have been handled */
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	/** @return The number of log updates that have been received */
+	public long getLogUpdateCount() {
+		return logUpdates.get();
+	}
+
+	private void respond(HttpExchange exchange) throws IOException {
+		requests.incrementAndGet();
+		if (latency > 0)
+			sleep(latency);
+
+		String method = exchange.getRequestMethod();
+		String[] path = exchange.getRequestURI().getPath()
+				.substring(API.length()).split("/");
+		if (method.equals("GET") && path[0].equals("token")) {
+			APIKeyResponse key = new APIKeyResponse();
+			key.setKey("local-key");
+			send(exchange, key);
+		} else if (method.equals("GET") && path[0].equals("queue")
+				&& path[1].equals("submitted")) {
+			Job job;
+			synchronized (jobs) {
+				job = submitted.poll();
+			}
+			if (job == null) {
+				QueueEmpty empty = new QueueEmpty();
+				empty.setWarning("no jobs in queue");
+				send(exchange, empty);
+			} else
+				send(exchange, job);
+		} else if (path[0].equals("queue")) {
+			JobRecord record = getRecord(path[1]);
+			if (record == null)
+				exchange.sendResponseHeaders(404, -1);
+			else if (method.equals("GET"))
+				send(exchange, record.job);
+			else
+				updateJob(exchange, record);
+		} else if (method.equals("PUT") && path[0].equals("log")) {
+			mapper.readValue(exchange.getRequestBody(), NMPILog.class);
+			logUpdates.incrementAndGet();
+			exchange.sendResponseHeaders(204, -1);
+		} else
+			exchange.sendResponseHeaders(404, -1);
+	}
+
+	private JobRecord getRecord(String id) {
+		synchronized (jobs) {
+			return jobs.get(Integer.parseInt(id));
+		}
+	}
+
+	private void updateJob(HttpExchange exchange, JobRecord record)
+			throws IOException {
+		Job update = mapper.readValue(exchange.getRequestBody(), Job.class);
+		long now = System.nanoTime();
+		synchronized (record) {
+			record.job.setStatus(update.getStatus());
+			if (update.getStatus().equals("running") && record.running == 0)
+				record.running = now;
+			else if ((update.getStatus().equals("finished") || update
+					.getStatus().equals("error")) && record.finished == 0)
+				record.finished = now;
+		}
+		exchange.sendResponseHeaders(204, -1);
+	}
+
+	private void send(HttpExchange exchange, Object value) throws IOException {
+		byte[] body = mapper.writeValueAsBytes(value);
+		exchange.getResponseHeaders().add("Content-Type", "application/json");
+		exchange.sendResponseHeaders(200, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	@Override
+	public void close() {
+		submitter.shutdownNow();
+		server.stop(0);
+		handlers.shutdownNow();
+	}
+}
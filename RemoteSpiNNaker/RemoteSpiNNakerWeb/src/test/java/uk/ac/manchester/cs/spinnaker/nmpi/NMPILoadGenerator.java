@@ -0,0 +1,471 @@
+package uk.ac.manchester.cs.spinnaker.nmpi;
+
+import static java.lang.Math.max;
+import static uk.ac.manchester.cs.spinnaker.utils.ThreadUtils.sleep;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.TimeoutHandler;
+import javax.ws.rs.core.Response;
+
+import org.springframework.context.annotation.AnnotationConfigApplicationContext;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.support.PropertySourcesPlaceholderConfigurer;
+import org.springframework.core.env.MapPropertySource;
+
+import uk.ac.manchester.cs.spinnaker.job.nmpi.DataItem;
+import uk.ac.manchester.cs.spinnaker.job.nmpi.Job;
+import uk.ac.manchester.cs.spinnaker.jobmanager.FairShareJobScheduler;
+import uk.ac.manchester.cs.spinnaker.jobmanager.JobExecuter;
+import uk.ac.manchester.cs.spinnaker.jobmanager.JobExecuterFactory;
+import uk.ac.manchester.cs.spinnaker.jobmanager.JobManager;
+import uk.ac.manchester.cs.spinnaker.jobmanager.JobScheduler;
+import uk.ac.manchester.cs.spinnaker.machine.SpinnakerMachine;
+import uk.ac.manchester.cs.spinnaker.machinemanager.MachineManager;
+import uk.ac.manchester.cs.spinnaker.machinemanager.MachineStateListener;
+import uk.ac.manchester.cs.spinnaker.nmpi.LocalNMPIQueue.JobRecord;
+import uk.ac.manchester.cs.spinnaker.rest.OutputManager;
+
+/**
+ * Drives a stream of synthetic jobs from a {@link LocalNMPIQueue} through a
+ * real {@link NMPIQueueManager} and {@link JobManager}, with executers that
+ * run in-process and just wait for a while, and measures how the pipeline
+ * copes.
+ */
+public class NMPILoadGenerator {
+	private final int nJobs;
+	private final double jobsPerSecond;
+	private final long latency;
+	private final long jobRunTime;
+	private final int maxExecuters;
+	/** When (in ns) each job was given to an executer */
+	private final Map<Integer, Long> started = new ConcurrentHashMap<>();
+
+	/** The results of a run */
+	public static class Report {
+		public int jobsSubmitted;
+		public int jobsFinished;
+		public double jobsPerMinute;
+		/** Mean and worst time (ms) from submission to an executer */
+		public double meanQueueToRunning, maxQueueToRunning;
+		/** Mean and worst time (ms) for the server to hear a job is running */
+		public double meanStatusLag, maxStatusLag;
+		public long requests;
+		public long logUpdates;
+
+		@Override
+		public String toString() {
+			return String.format("%d of %d jobs finished (%.1f jobs/minute); "
+					+ "queue to running %.1fms mean, %.1fms max; "
+					+ "status update lag %.1fms mean, %.1fms max; "
+					+ "%d requests, %d log updates", jobsFinished,
+					jobsSubmitted, jobsPerMinute, meanQueueToRunning,
+					maxQueueToRunning, meanStatusLag, maxStatusLag, requests,
+					logUpdates);
+		}
+	}
+
+	/**
+	 * @param nJobs
+	 *            The number of jobs to submit
+	 * @param jobsPerSecond
+	 *            The rate at which to submit them
+	 * @param latency
+	 *            How long (in ms) the stand-in server takes to respond
+	 * @param jobRunTime
+	 *            How long (in ms) each job runs for
+	 * @param maxExecuters
+	 *            The most jobs that may run at once
+	 */
+	public NMPILoadGenerator(int nJobs, double jobsPerSecond, long latency,
+			long jobRunTime, int maxExecuters) {
+		this.nJobs = nJobs;
+		this.jobsPerSecond = jobsPerSecond;
+		this.latency = latency;
+		this.jobRunTime = jobRunTime;
+		this.maxExecuters = maxExecuters;
+	}
+
+	/**
+	 * Runs the jobs through the pipeline.
+	 *
+	 * @param timeout
+	 *            The longest time (in ms) to wait for the jobs to finish
+	 * @return What was measured
+	 */
+	public Report run(long timeout) throws IOException {
+		try (LocalNMPIQueue server = new LocalNMPIQueue(latency)) {
+			Map<String, Object> properties = new HashMap<>();
+			properties.put("nmpi.url", server.getUrl().toString());
+			properties.put("nmpi.username", "load-test");
+			properties.put("nmpi.password", "local-key");
+			properties.put("nmpi.passwordIsApiKey", "true");
+			properties.put("nmpi.hardware", "SpiNNaker");
+			properties.put("nmpi.poll.maxEmptyIntervalMs", "1000");
+			properties.put("nmpi.log.windowMs", "100");
+			properties.put("restartJobExecutorOnFailure", "false");
+			properties.put("jobmanager.nextJob.timeoutMs", "0");
+			properties.put("jobmanager.executers.launchesPerSecond", "0");
+
+			AnnotationConfigApplicationContext context = new AnnotationConfigApplicationContext();
+			context.getEnvironment().getPropertySources()
+					.addFirst(new MapPropertySource("load", properties));
+			context.getBeanFactory().registerSingleton("executerFactory",
+					new ExecuterFactory());
+			context.getBeanFactory().registerSingleton("machineManager",
+					new NoMachineManager());
+			context.getBeanFactory().registerSingleton("outputManager",
+					new NoOutputManager());
+			context.register(Beans.class);
+			context.refresh();
+
+			long start = System.nanoTime();
+			long finish;
+			try {
+				server.submitJobs(nJobs, jobsPerSecond);
+				long deadline = System.currentTimeMillis() + timeout;
+				while (server.getFinishedCount() < nJobs
+						&& System.currentTimeMillis() < deadline)
+					sleep(10);
+				finish = System.nanoTime();
+			} finally {
+				context.getBean(NMPIQueueManager.class).close();
+				context.close();
+			}
+			return report(server, finish - start);
+		}
+	}
+
+	private Report report(LocalNMPIQueue server, long elapsed) {
+		Report report = new Report();
+		report.jobsSubmitted = nJobs;
+		report.requests = server.getRequestCount();
+		report.logUpdates = server.getLogUpdateCount();
+		long totalQueue = 0, maxQueue = 0, totalLag = 0, maxLag = 0;
+		int nStarted = 0, nLagged = 0;
+		for (JobRecord record : server.getJobs().values()) {
+			if (record.finished != 0)
+				report.jobsFinished++;
+			Long startTime = started.get(record.job.getId());
+			if (startTime == null)
+				continue;
+			long queued = startTime - record.submitted;
+			totalQueue += queued;
+			maxQueue = max(maxQueue, queued);
+			nStarted++;
+			if (record.running != 0) {
+				long lag = record.running - startTime;
+				totalLag += lag;
+				maxLag = max(maxLag, lag);
+				nLagged++;
+			}
+		}
+		report.jobsPerMinute = report.jobsFinished * 60.0
+				/ (elapsed / 1000000000.0);
+		report.meanQueueToRunning = millis(totalQueue) / max(nStarted, 1);
+		report.maxQueueToRunning = millis(maxQueue);
+		report.meanStatusLag = millis(totalLag) / max(nLagged, 1);
+		report.maxStatusLag = millis(maxLag);
+		return report;
+	}
+
+	private static double millis(long nanos) {
+		return nanos / 1000000.0;
+	}
+
+	/** The beans under test; lite mode, as the beans do not call each other */
+	static class Beans {
+		@Bean
+		public static PropertySourcesPlaceholderConfigurer propertySourcesPlaceholderConfigurer() {
+			return new PropertySourcesPlaceholderConfigurer();
+		}
+
+		@Bean
+		public NMPIQueueManager queueManager() {
+			return new NMPIQueueManager();
+		}
+
+		@Bean
+		public JobScheduler jobScheduler() {
+			return new FairShareJobScheduler();
+		}
+
+		@Bean
+		public JobManager jobManager() throws IOException {
+			return new JobManager(new URL("http://localhost/"));
+		}
+	}
+
+	/** Makes executers that take a job, wait, and then finish it */
+	private class ExecuterFactory implements JobExecuterFactory {
+		@Override
+		public JobExecuter createJobExecuter(final JobManager manager,
+				URL baseUrl) {
+			final String id = UUID.randomUUID().toString();
+			return new JobExecuter() {
+				private volatile long startTime;
+
+				@Override
+				public String getExecuterId() {
+					return id;
+				}
+
+				@Override
+				public long getStartTime() {
+					return startTime;
+				}
+
+				@Override
+				public void startExecuter() {
+					startTime = System.currentTimeMillis();
+					Thread thread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							execute(manager, id);
+						}
+					}, "Executer " + id);
+					thread.setDaemon(true);
+					thread.start();
+				}
+			};
+		}
+
+		@Override
+		public int getMaxExecuters() {
+			return maxExecuters;
+		}
+	}
+
+	private void execute(JobManager manager, String executerId) {
+		// Ask as a remote executer would, through the suspended request
+		ExecuterResponse response = new ExecuterResponse();
+		manager.waitForNextJob(executerId, response);
+		Job job;
+		try {
+			job = (Job) response.get();
+		} catch (InterruptedException e) {
+			return;
+		}
+		if (job == null)
+			return;
+		started.put(job.getId(), System.nanoTime());
+		sleep(jobRunTime);
+		manager.setJobFinished(job.getCollabId(), job.getId(),
+				"Synthetic job finished\n", "", new ArrayList<String>());
+		manager.setExecutorExited(executerId, "");
+	}
+
+	/** A suspended request of an in-process executer */
+	private static class ExecuterResponse implements AsyncResponse {
+		private Object value;
+		private boolean done;
+
+		synchronized Object get() throws InterruptedException {
+			while (!done)
+				wait();
+			return value;
+		}
+
+		private synchronized boolean complete(Object value) {
+			if (done)
+				return false;
+			this.value = value;
+			done = true;
+			notifyAll();
+			return true;
+		}
+
+		@Override
+		public boolean resume(Object response) {
+			return complete(response instanceof Job ? response : null);
+		}
+
+		@Override
+		public boolean resume(Throwable response) {
+			return complete(null);
+		}
+
+		@Override
+		public boolean cancel() {
+			return complete(null);
+		}
+
+		@Override
+		public boolean cancel(int retryAfter) {
+			return complete(null);
+		}
+
+		@Override
+		public boolean cancel(Date retryAfter) {
+			return complete(null);
+		}
+
+		@Override
+		public synchronized boolean isSuspended() {
+			return !done;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return false;
+		}
+
+		@Override
+		public synchronized boolean isDone() {
+			return done;
+		}
+
+		@Override
+		public boolean setTimeout(long time, TimeUnit unit) {
+			// The executers wait for as long as it takes
+			return true;
+		}
+
+		@Override
+		public void setTimeoutHandler(TimeoutHandler handler) {
+			// Never times out
+		}
+
+		@Override
+		public Collection<Class<?>> register(Class<?> callback) {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Map<Class<?>, Collection<Class<?>>> register(Class<?> callback,
+				Class<?>... callbacks) {
+			return Collections.emptyMap();
+		}
+
+		@Override
+		public Collection<Class<?>> register(Object callback) {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public Map<Class<?>, Collection<Class<?>>> register(Object callback,
+				Object... callbacks) {
+			return Collections.emptyMap();
+		}
+	}
+
+	/** The synthetic jobs do not ask for machines */
+	private static class NoMachineManager implements MachineManager {
+		@Override
+		public List<SpinnakerMachine> getMachines() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public SpinnakerMachine getNextAvailableMachine(int nBoards) {
+			return null;
+		}
+
+		@Override
+		public SpinnakerMachine getNextAvailableMachine(int nBoards,
+				double runTime) {
+			return null;
+		}
+
+		@Override
+		public void setMachineRunTime(SpinnakerMachine machine, double runTime) {
+			// Does Nothing
+		}
+
+		@Override
+		public boolean isMachineAvailable(SpinnakerMachine machine) {
+			return false;
+		}
+
+		@Override
+		public boolean waitForMachineStateChange(SpinnakerMachine machine,
+				int waitTime) {
+			return false;
+		}
+
+		@Override
+		public void releaseMachine(SpinnakerMachine machine) {
+			// Does Nothing
+		}
+
+		@Override
+		public void addStateListener(MachineStateListener listener) {
+			// Does Nothing
+		}
+
+		@Override
+		public void removeStateListener(MachineStateListener listener) {
+			// Does Nothing
+		}
+
+		@Override
+		public void close() {
+			// Does Nothing
+		}
+	}
+
+	/** The synthetic jobs have no outputs */
+	private static class NoOutputManager implements OutputManager {
+		@Override
+		public List<DataItem> addOutputs(String projectId, int id,
+				File rootFile, Collection<File> outputs) {
+			return new ArrayList<>();
+		}
+
+		@Override
+		public File getStagingDirectory() {
+			return new File(System.getProperty("java.io.tmpdir"));
+		}
+
+		@Override
+		public Response getResultFile(String projectId, int id,
+				String filename, boolean download) {
+			return null;
+		}
+
+		@Override
+		public Response getResultFile(int id, String filename,
+				boolean download) {
+			return null;
+		}
+
+		@Override
+		public Response uploadResultsToHPCServer(String projectId, int id,
+				String serverUrl, String storageId, String filePath,
+				String userId, String token) {
+			return null;
+		}
+	}
+
+	/**
+	 * Runs the load generator.
+	 *
+	 * @param args
+	 *            The number of jobs, jobs per second, server latency (ms), job
+	 *            run time (ms) and maximum number of executers
+	 */
+	public static void main(String... args) throws IOException {
+		int nJobs = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+		double rate = args.length > 1 ? Double.parseDouble(args[1]) : 20;
+		long latency = args.length > 2 ? Long.parseLong(args[2]) : 20;
+		long runTime = args.length > 3 ? Long.parseLong(args[3]) : 1000;
+		int executers = args.length > 4 ? Integer.parseInt(args[4]) : 50;
+		NMPILoadGenerator generator = new NMPILoadGenerator(nJobs, rate,
+				latency, runTime, executers);
+		System.out.println(generator.run(nJobs * 1000L));
+		System.exit(0);
+	}
+}
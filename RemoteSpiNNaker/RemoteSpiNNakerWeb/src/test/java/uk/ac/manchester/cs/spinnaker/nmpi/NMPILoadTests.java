@@ -0,0 +1,23 @@
+package uk.ac.manchester.cs.spinnaker.nmpi;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import uk.ac.manchester.cs.spinnaker.nmpi.NMPILoadGenerator.Report;
+
+public class NMPILoadTests {
+	@Test
+	public void jobsFlowThroughPipeline() throws Exception {
+		NMPILoadGenerator generator = new NMPILoadGenerator(20, 100, 2, 20,
+				5);
+		Report report = generator.run(30000);
+		assertEquals(20, report.jobsSubmitted);
+		assertEquals(20, report.jobsFinished);
+		assertTrue(report.jobsPerMinute > 0);
+		assertTrue(report.meanQueueToRunning <= report.maxQueueToRunning);
+		assertTrue(report.meanStatusLag <= report.maxStatusLag);
+		// At least one request to fetch each job, and one to update it
+		assertTrue(report.requests >= 2 * report.jobsSubmitted);
+	}
+}